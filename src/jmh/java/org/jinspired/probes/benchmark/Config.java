@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.benchmark;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.interceptor.ProbesInterceptor;
+import org.jinspired.probes.interceptor.ProbesInterceptorFactory;
+import org.jinspired.probes.strategy.ProbesStrategy;
+import org.jinspired.probes.strategy.ProbesStrategyFactory;
+
+/**
+ * Configures the reference implementation prior to the initialization of the {@link Probes} class within a benchmark fork.<p>
+ * The values are set as system properties and so have no effect on other providers or once {@link Probes} has been initialized.
+ */
+final class Config {
+
+  private Config() {}
+
+  /**
+   * Sets the number, 0 to 4, of meters read by a probe.
+   */
+  static void meters(int count) {
+    final String[] meters = {"clock.time", "clock.tick", "cpu.time"};
+
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < Math.min(count, meters.length); i++) {
+      if (sb.length() > 0) sb.append(',');
+      sb.append(meters[i]);
+    }
+    System.setProperty("probes.meters", sb.toString());
+
+    if (count > meters.length) System.setProperty("probes.counters", "benchmark.counter");
+  }
+
+  /**
+   * Sets the number of no-op strategies and interceptors dispatched to on each probe firing.
+   */
+  static void extensions(int strategies, int interceptors) {
+    System.setProperty("probes.strategies", repeat(NoopStrategyFactory.class.getName(), strategies));
+    System.setProperty("probes.interceptors", repeat(NoopInterceptorFactory.class.getName(), interceptors));
+  }
+
+  private static String repeat(String value, int count) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (sb.length() > 0) sb.append(',');
+      sb.append(value);
+    }
+    return sb.toString();
+  }
+
+  public static final class NoopStrategyFactory implements ProbesStrategyFactory, ProbesStrategy {
+
+    public void init(Probes.Environment environment) {}
+
+    public ProbesStrategy create(Probes.Context context) {
+      return this;
+    }
+
+    public int vote(Probes.Probe probe) {
+      return 0;
+    }
+
+  }
+
+  public static final class NoopInterceptorFactory implements ProbesInterceptorFactory, ProbesInterceptor {
+
+    public void init(Probes.Environment environment) {}
+
+    public ProbesInterceptor create(Probes.Context context) {
+      return this;
+    }
+
+    public void begin(Probes.Probe probe) {}
+
+    public void end(Probes.Probe probe) {}
+
+  }
+
+}
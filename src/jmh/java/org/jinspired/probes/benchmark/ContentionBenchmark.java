@@ -0,0 +1,148 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.benchmark;
+
+import org.jinspired.probes.Probes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the hot paths with 1, 8 and 64 threads to expose contention on shared provider state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+
+  private Probes.Name name;
+
+  @Setup
+  public void setup() {
+    Config.meters(1);
+    name = Probes.parse("benchmark.contention");
+  }
+
+  private Probes.Probe fire() {
+    final Probes.Probe p = Probes.begin(name);
+    p.end();
+    return p;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Probes.Probe beginEnd_1() {
+    return fire();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Probes.Probe beginEnd_8() {
+    return fire();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Probes.Probe beginEnd_64() {
+    return fire();
+  }
+
+  private Probes.Counter inc() {
+    final Probes.Counter c = Probes.context().counter(name);
+    c.inc();
+    return c;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Probes.Counter inc_1() {
+    return inc();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Probes.Counter inc_8() {
+    return inc();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Probes.Counter inc_64() {
+    return inc();
+  }
+
+  private Probes.Counter globalInc() {
+    final Probes.Counter c = Probes.counter(name);
+    c.inc();
+    return c;
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Probes.Counter globalInc_1() {
+    return globalInc();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Probes.Counter globalInc_8() {
+    return globalInc();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Probes.Counter globalInc_64() {
+    return globalInc();
+  }
+
+  private Probes.Name parse() {
+    return Probes.parse("benchmark.contention.name");
+  }
+
+  @Benchmark
+  @Threads(1)
+  public Probes.Name parse_1() {
+    return parse();
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Probes.Name parse_8() {
+    return parse();
+  }
+
+  @Benchmark
+  @Threads(64)
+  public Probes.Name parse_64() {
+    return parse();
+  }
+
+}
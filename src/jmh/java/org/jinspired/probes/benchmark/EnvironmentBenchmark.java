@@ -0,0 +1,91 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.benchmark;
+
+import org.jinspired.probes.Probes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the getting and setting of thread context environment values.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+
+  private Probes.Environment environment;
+  private Probes.Name value;
+  private Probes.Name missing;
+  private long next;
+
+  @Setup
+  public void setup() {
+    environment = Probes.context().getEnvironment();
+    value = Probes.parse("benchmark.environment.value");
+    missing = Probes.parse("benchmark.environment.missing");
+
+    environment.setLong(value, 1L);
+  }
+
+  @Benchmark
+  public long getLong() {
+    return environment.getLong(value);
+  }
+
+  @Benchmark
+  public long getLongMissing() {
+    return environment.getLong(missing, -1L);
+  }
+
+  @Benchmark
+  public Probes.Environment setLong() {
+    environment.setLong(value, next++);
+    return environment;
+  }
+
+  @Benchmark
+  public String getString() {
+    return environment.getString(value);
+  }
+
+  @Benchmark
+  public Probes.Environment setString() {
+    environment.setString(value, "value");
+    return environment;
+  }
+
+  @Benchmark
+  public boolean contains() {
+    return environment.contains(value);
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.benchmark;
+
+import org.jinspired.probes.Probes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the lookup of interned names on a hit and the creation of names on a miss.<p>
+ * Note: The miss benchmarks grow the name table for the duration of the fork and include the cost of building the string value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameBenchmark {
+
+  private Probes.Name prefix;
+  private Method method;
+  private int next;
+
+  @Setup
+  public void setup() throws Exception {
+    prefix = Probes.parse("benchmark.name");
+    prefix.name("hit");
+    method = NameBenchmark.class.getMethod("setup");
+  }
+
+  @Benchmark
+  public Probes.Name nameHit() {
+    return Probes.name("benchmark");
+  }
+
+  @Benchmark
+  public Probes.Name childHit() {
+    return prefix.name("hit");
+  }
+
+  @Benchmark
+  public Probes.Name parseHit() {
+    return Probes.parse("benchmark.name.hit");
+  }
+
+  @Benchmark
+  public Probes.Name classHit() {
+    return Probes.name(NameBenchmark.class);
+  }
+
+  @Benchmark
+  public Probes.Name methodHit() {
+    return Probes.name(method);
+  }
+
+  @Benchmark
+  public Probes.Name nameMiss() {
+    return prefix.name(Integer.toString(next++));
+  }
+
+  @Benchmark
+  public Probes.Name parseMiss() {
+    return Probes.parse("benchmark.miss." + next++);
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.benchmark;
+
+import org.jinspired.probes.Probes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the firing of a probe with a varying number of meters read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProbeBenchmark {
+
+  @Param({"0", "1", "4"})
+  public int meters;
+
+  private Probes.Name outer;
+  private Probes.Name inner;
+  private Probes.Context context;
+  private Probes.Probe probe;
+
+  @Setup
+  public void setup() {
+    Config.meters(meters);
+
+    outer = Probes.parse("benchmark.probe.outer");
+    inner = Probes.parse("benchmark.probe.inner");
+    context = Probes.context();
+    probe = context.create(outer);
+  }
+
+  @Benchmark
+  public Probes.Probe beginEnd() {
+    final Probes.Probe p = Probes.begin(outer);
+    p.end();
+    return p;
+  }
+
+  @Benchmark
+  public Probes.Probe contextBeginEnd() {
+    final Probes.Probe p = context.begin(outer);
+    p.end();
+    return p;
+  }
+
+  @Benchmark
+  public Probes.Probe refire() {
+    probe.begin();
+    probe.end();
+    return probe;
+  }
+
+  @Benchmark
+  public Probes.Probe nested() {
+    final Probes.Probe p = context.begin(outer);
+    context.begin(inner).end();
+    p.end();
+    return p;
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.benchmark;
+
+import org.jinspired.probes.Probes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the creation of savepoints and the comparison with a savepoint at several probe table sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SavePointBenchmark {
+
+  @Param({"100", "10000", "100000"})
+  public int names;
+
+  private Probes.Context context;
+  private Probes.Name name;
+  private Probes.SavePoint savepoint;
+
+  @Setup
+  public void setup() {
+    context = Probes.context();
+
+    final Probes.Name prefix = Probes.parse("benchmark.savepoint");
+    for (int i = 0; i < names; i++) context.begin(prefix.name(Integer.toString(i))).end();
+
+    name = prefix.name("0");
+    savepoint = context.savepoint();
+  }
+
+  @Benchmark
+  public Probes.SavePoint create() {
+    return context.savepoint();
+  }
+
+  @Benchmark
+  public Probes.SavePoint reuse() {
+    return savepoint = context.savepoint(savepoint);
+  }
+
+  @Benchmark
+  public Probes.ChangeSet compare() {
+    context.begin(name).end();
+    return context.compare(savepoint);
+  }
+
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes;
+
+import org.jinspired.probes.spi.ProbesProvider;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The {@link ProbesProvider} used by {@link Probes} when no metering runtime is present or it fails to initialize.<p>
+ * All calls return shared singleton instances that do nothing allowing the JIT compiler to inline instrumentation calls away.
+ * The {@link Probes.Environment Environment} does not retain values set.
+ */
+final class NoopProvider implements ProbesProvider {
+
+  static final NoopProvider INSTANCE = new NoopProvider();
+
+  private static final NoopName NAME = new NoopName();
+  private static final NoopProbe PROBE = new NoopProbe();
+  private static final NoopContext CONTEXT = new NoopContext();
+  private static final NoopCounter COUNTER = new NoopCounter();
+  private static final NoopEnvironment ENVIRONMENT = new NoopEnvironment();
+  private static final NoopSavePoint SAVEPOINT = new NoopSavePoint();
+  private static final EmptyIterator EMPTY = new EmptyIterator();
+
+  private NoopProvider() {}
+
+  @SuppressWarnings("unchecked")
+  private static <T> Iterator<T> empty() {
+    return (Iterator<T>) EMPTY;
+  }
+
+  public void init() {}
+
+  public Probes.Context context() {
+    return CONTEXT;
+  }
+
+  public Probes.Name name(String value) {
+    if (value == null) throw new NullPointerException("value");
+    return NAME;
+  }
+
+  public Probes.Name name(Class cls) {
+    if (cls == null) throw new NullPointerException("cls");
+    return NAME;
+  }
+
+  public Probes.Name name(Method method) {
+    if (method == null) throw new NullPointerException("method");
+    return NAME;
+  }
+
+  public Probes.Meter meter(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+    return null;
+  }
+
+  public Probes.Name parse(String value) {
+    if (value == null) throw new NullPointerException("value");
+    return NAME;
+  }
+
+  public Probes.Label label(String value) {
+    return null;
+  }
+
+  public Probes.Counter counter(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+    return COUNTER;
+  }
+
+  private static final class NoopName implements Probes.Name {
+
+    public int getLength() {
+      return 1;
+    }
+
+    public String valueAt(int index) {
+      if (index != 0) throw new IllegalArgumentException("index: " + index);
+      return "";
+    }
+
+    public Probes.Name getPrefix() {
+      return null;
+    }
+
+    public String getValue() {
+      return "";
+    }
+
+    public Probes.Name name(String value) {
+      if (value == null) throw new NullPointerException("value");
+      return this;
+    }
+
+    public Iterator<Probes.Label> labels() {
+      return empty();
+    }
+
+    public boolean contains(Probes.Label label) {
+      if (label == null) throw new NullPointerException("label");
+      return false;
+    }
+
+    public Probes.Name find(String value) {
+      return null;
+    }
+
+    public boolean startsWith(Probes.Name name) {
+      return name == this;
+    }
+
+    public boolean isDisabled() {
+      return true;
+    }
+
+  }
+
+  private static final class NoopProbe implements Probes.Probe {
+
+    public Probes.Name getName() {
+      return NAME;
+    }
+
+    public void begin() {}
+
+    public void end() {}
+
+    public void end(int count) {
+      if (count < 0) throw new IllegalArgumentException("count: " + count);
+    }
+
+    public Iterator<Probes.Reading> readings() {
+      return empty();
+    }
+
+    public Probes.Reading reading(Probes.Name name) {
+      if (name == null) throw new NullPointerException("name");
+      return null;
+    }
+
+    public void run(Runnable runnable) {
+      runnable.run();
+    }
+
+    public int getState() {
+      return 0;
+    }
+
+  }
+
+  private static final class NoopContext implements Probes.Context {
+
+    public String getName() {
+      return Thread.currentThread().getName();
+    }
+
+    public Probes.Probe create(Probes.Name name) {
+      if (name == null) throw new NullPointerException("name");
+      return PROBE;
+    }
+
+    public Probes.Probe begin(Probes.Name name) {
+      if (name == null) throw new NullPointerException("name");
+      return PROBE;
+    }
+
+    public Probes.Probe run(Runnable runnable) {
+      runnable.run();
+      return PROBE;
+    }
+
+    public Probes.SavePoint savepoint() {
+      return SAVEPOINT;
+    }
+
+    public Probes.SavePoint savepoint(Probes.SavePoint savepoint) {
+      return SAVEPOINT;
+    }
+
+    public Probes.ChangeSet compare(Probes.SavePoint savepoint) {
+      if (savepoint == null) throw new NullPointerException("savepoint");
+      return SAVEPOINT;
+    }
+
+    public Probes.Environment getEnvironment() {
+      return ENVIRONMENT;
+    }
+
+    public Iterator<Probes.Meter> meters() {
+      return empty();
+    }
+
+    public Probes.Counter counter(Probes.Name name) {
+      if (name == null) throw new NullPointerException("name");
+      return COUNTER;
+    }
+
+    public void dump(Appendable out) {
+      if (out == null) throw new NullPointerException("out");
+    }
+
+  }
+
+  private static final class NoopCounter implements Probes.Counter {
+
+    public Probes.Name getName() {
+      return NAME;
+    }
+
+    public long getValue() {
+      return 0L;
+    }
+
+    public void inc() {}
+
+    public void inc(long value) {}
+
+  }
+
+  private static final class NoopSavePoint implements Probes.SavePoint, Probes.ChangeSet {
+
+    public Probes.ChangeSet compare(Probes.SavePoint savepoint) {
+      if (savepoint == null) throw new NullPointerException("savepoint");
+      return this;
+    }
+
+    public Iterator<Probes.Change> changes() {
+      return empty();
+    }
+
+    public Probes.Change change(Probes.Name name) {
+      if (name == null) throw new NullPointerException("name");
+      return null;
+    }
+
+    public Iterator<Probes.ChangePoint> changepoints() {
+      return empty();
+    }
+
+    public Probes.ChangePoint changepoint(Probes.Name name) {
+      if (name == null) throw new NullPointerException("name");
+      return null;
+    }
+
+  }
+
+  private static final class NoopEnvironment implements Probes.Environment {
+
+    public boolean contains(Probes.Name name) {
+      return false;
+    }
+
+    public void remove(Probes.Name name) {}
+
+    public void setNull(Probes.Name name) {}
+
+    public boolean isNull(Probes.Name name) {
+      return true;
+    }
+
+    public long getLong(Probes.Name name) {
+      return 0L;
+    }
+
+    public long getLong(Probes.Name name, long defValue) {
+      return defValue;
+    }
+
+    public void setLong(Probes.Name name, long newValue) {}
+
+    public boolean getBoolean(Probes.Name name) {
+      return false;
+    }
+
+    public boolean getBoolean(Probes.Name name, boolean defValue) {
+      return defValue;
+    }
+
+    public void setBoolean(Probes.Name name, boolean newValue) {}
+
+    public int getInt(Probes.Name name) {
+      return 0;
+    }
+
+    public int getInt(Probes.Name name, int defValue) {
+      return defValue;
+    }
+
+    public void setInt(Probes.Name name, int newValue) {}
+
+    public double getDouble(Probes.Name name) {
+      return 0D;
+    }
+
+    public double getDouble(Probes.Name name, double defValue) {
+      return defValue;
+    }
+
+    public void setDouble(Probes.Name name, double newValue) {}
+
+    public String getString(Probes.Name name) {
+      return null;
+    }
+
+    public String getString(Probes.Name name, String defValue) {
+      return defValue;
+    }
+
+    public void setString(Probes.Name name, String newValue) {}
+
+    public Probes.Name getName(Probes.Name name) {
+      return null;
+    }
+
+    public Probes.Name getName(Probes.Name name, Probes.Name defValue) {
+      return defValue;
+    }
+
+    public void setName(Probes.Name name, Probes.Name newValue) {}
+
+  }
+
+  private static final class EmptyIterator implements Iterator<Object> {
+
+    public boolean hasNext() {
+      return false;
+    }
+
+    public Object next() {
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+}
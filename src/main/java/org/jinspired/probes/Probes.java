@@ -20,10 +20,14 @@ package org.jinspired.probes;
 import org.jinspired.probes.spi.ProbesProvider;
 import org.jinspired.probes.spi.ProbesProviderFactory;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.Iterator;
+import java.util.ServiceLoader;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * The {@link Probes} class is the entry point into the activity metering API.<p>
@@ -50,27 +54,54 @@ import java.util.Iterator;
  */
 public final class Probes {
 
+  private static final String FACTORY = "org.jinspired.probes.spi.factory";
+  private static final String DEFAULT_FACTORY = "com.jinspired.jxinsight.server.probes.ProviderFactory";
+
   private static final ProbesProvider PROVIDER;
 
   static {
-    final ProbesProviderFactory factory;
+    PROVIDER = (ProbesProvider) AccessController.doPrivileged(new PrivilegedAction() {
+      public Object run() {
+        return provider();
+      }
+    });
+  }
 
+  /**
+   * Creates and initializes the provider using the factory named by the system property, else the first factory registered as a
+   * {@code java.util.ServiceLoader} service, else the default factory if present, falling back to a no-op provider on failure.
+   */
+  private static ProbesProvider provider() {
     try {
-
-      factory = (ProbesProviderFactory) Class.forName((String) AccessController.doPrivileged(new PrivilegedAction() {
-        public Object run() {
-          return System.getProperty("org.jinspired.probes.spi.factory",
-              "com.jinspired.jxinsight.server.probes.ProviderFactory");
+      ProbesProviderFactory factory = null;
+
+      final String name = System.getProperty(FACTORY);
+      if (name != null) {
+        factory = (ProbesProviderFactory) Class.forName(name).newInstance();
+      } else {
+        final Iterator<ProbesProviderFactory> factories = ServiceLoader.load(ProbesProviderFactory.class, Probes.class.getClassLoader()).iterator();
+        if (factories.hasNext()) {
+          factory = factories.next();
+        } else {
+          try {
+            factory = (ProbesProviderFactory) Class.forName(DEFAULT_FACTORY).newInstance();
+          } catch (ClassNotFoundException e) {
+            // no metering runtime present
+          }
         }
-      })).newInstance();
+      }
+
+      if (factory != null) {
+        final ProbesProvider provider = factory.create();
+        provider.init();
+        return provider;
+      }
 
     } catch (Throwable t) {
-      throw new RuntimeException(t);
+      Logger.getLogger(Probes.class.getName()).log(Level.WARNING, "Unable to initialize the probes provider, metering is disabled", t);
     }
 
-    PROVIDER = factory.create();
-    PROVIDER.init();
-
+    return NoopProvider.INSTANCE;
   }
 
   private Probes() {}
@@ -95,6 +126,19 @@ public final class Probes {
     return PROVIDER.meter(name);
   }
 
+  /**
+   * Returns the process wide {@link Probes.Counter Counter} instance associated with the name.
+   * <p>Note: A {@link Probes.Counter Counter} will be created if not already present.
+   *
+   * @param name the name of the counter
+   * @return The process wide {@link Probes.Counter Counter} instance associated with the name.
+   * @throws NullPointerException if the name parameter is <tt>null</tt>
+   * @see Probes.Context#counter(Probes.Name)
+   */
+  public static Probes.Counter counter(Probes.Name name) {
+    return PROVIDER.counter(name);
+  }
+
   /**
    * Returns a thread specific {@link Probes.Probe Probe} instance.
    *
@@ -270,9 +314,9 @@ public final class Probes {
     public boolean startsWith(Probes.Name name);
 
     /**
-     * Returns true if the name has been labeled "disabled".
+     * Returns true if the name has been labeled "disabled" or has been disabled by the provider's configuration.
      *
-     * @return <tt>true</tt> if the name has been labeled "disabled"
+     * @return <tt>true</tt> if the name has been labeled "disabled" or disabled by configuration
      */
     public boolean isDisabled();
 
@@ -300,6 +344,18 @@ public final class Probes {
      */
     public void end();
 
+    /**
+     * Updates all {@link Probes.Reading Reading} instances with the current {@link Probes.Meter Meter} values and records the begin-end window as a batch of logical firings.<p>
+     * The meters are read once at each end of the batch rather than once per firing with the {@link Probes.Change Change} count incremented by the count parameter and the total by the batch delta.<p>
+     * A count of zero ends the firing without it being recorded anywhere, including the recent firings of the context,
+     * with only the interceptors that saw the begin notified of the end.
+     *
+     * @param count the number of logical firings performed within the begin-end window
+     * @throws IllegalArgumentException if the count parameter is less than 0
+     * @see #end()
+     */
+    public void end(int count);
+
     /**
      * Returns an immutable {@code java.util.Iterator<Probes.Reading>} that allows navigation over the list of meter {@link Probes.Reading Reading} instances created during the first invocation of {@link #begin()}.
      *
@@ -431,6 +487,16 @@ public final class Probes {
      */
     public Counter counter(Name name);
 
+    /**
+     * Writes the most recent probe firings ended within this {@link Probes.Context Context}, oldest first, with their readings.
+     * <p>Note: Nothing is written if the provider has not been configured to record recent firings.
+     *
+     * @param out the destination of the dump
+     * @throws IOException if the dump cannot be written
+     * @throws NullPointerException if the out parameter is <tt>null</tt>
+     */
+    public void dump(Appendable out) throws IOException;
+
   }
 
   /**
@@ -890,8 +956,10 @@ public final class Probes {
    * <p>{@link org.jinspired.probes.Probes.Counter Counters} provide a mechanism for extending the list of possible meters supported by the metering runtime as custom meters can be configured to use underlying one or more counters as the resource metered.
    * <p>They also offer a smaller runtime overhead for simple event/incident reporting than {@link org.jinspired.probes.Probes.Probe Probes} which are interval based.
    * <p>Note: The {@link org.jinspired.probes.Probes.Counter Counter} is specific to a particular thread and thus should not be reused across multiple threads of execution.
+   * The exception being a process wide {@link org.jinspired.probes.Probes.Counter Counter} obtained from {@link org.jinspired.probes.Probes#counter(org.jinspired.probes.Probes.Name)} which can be incremented by any thread.
    *
    * @see org.jinspired.probes.Probes.Context#counter(org.jinspired.probes.Probes.Name)
+   * @see org.jinspired.probes.Probes#counter(org.jinspired.probes.Probes.Name)
    */
   public interface Counter {
 
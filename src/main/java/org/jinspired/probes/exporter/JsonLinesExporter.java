@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.exporter;
+
+import org.jinspired.probes.Probes;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * An exporter appending one JSON object per line for each name changed within an interval.<p>
+ * The file is named by <tt>probes.exporter.json.file</tt> (default <tt>probes.jsonl</tt>) with each line holding the interval deltas of a name by meter:
+ * <pre>
+ * {"time":1400000000000,"name":"com.acme.Dao.find","changes":{"clock.time":{"count":2,"total":180,"inherent":120}}}
+ * </pre>
+ */
+public final class JsonLinesExporter implements ProbesExporter {
+
+  private Writer out;
+
+  public void init(Probes.Environment environment) {
+    final String file = environment.getString(Probes.parse("probes.exporter.json.file"), "probes.jsonl");
+    try {
+      out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+    } catch (IOException e) {
+      throw new IllegalStateException("unable to open: " + file, e);
+    }
+  }
+
+  public void export(long time, Probes.ChangeSet changes) throws IOException {
+    final String prefix = "{\"time\":" + time + ",\"name\":";
+
+    for (Iterator<Probes.ChangePoint> it = changes.changepoints(); it.hasNext();) {
+      final Probes.ChangePoint cp = it.next();
+
+      out.write(prefix);
+      string(cp.getName().toString());
+      out.write(",\"changes\":{");
+
+      boolean first = true;
+      for (Iterator<Probes.Change> cs = cp.changes(); cs.hasNext();) {
+        final Probes.Change c = cs.next();
+
+        if (!first) out.write(',');
+        first = false;
+
+        string(c.getName().toString());
+        out.write(":{\"count\":");
+        out.write(Long.toString(c.getCount()));
+        out.write(",\"total\":");
+        out.write(Long.toString(c.getTotal()));
+        out.write(",\"inherent\":");
+        out.write(Long.toString(c.getInherentTotal()));
+        out.write('}');
+      }
+
+      out.write("}}\n");
+    }
+
+    out.flush();
+  }
+
+  private void string(String value) throws IOException {
+    out.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        out.write('\\');
+        out.write(c);
+      } else if (c < 0x20) {
+        out.write(String.format("\\u%04x", (int) c));
+      } else {
+        out.write(c);
+      }
+    }
+    out.write('"');
+  }
+
+  public void close() throws IOException {
+    out.close();
+  }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.exporter;
+
+import org.jinspired.probes.Probes;
+
+import java.io.IOException;
+
+/**
+ * The {@link ProbesExporter ProbesExporter} interface provides an extension point for exporting the metering recorded across all thread contexts at a fixed interval.
+ */
+public interface ProbesExporter {
+
+  /**
+   * Called once per individual configuration and prior to the first export.
+   *
+   * @param environment an environment instance holding possible configuration settings
+   */
+  public void init(Probes.Environment environment);
+
+  /**
+   * Exports the metering recorded within an interval with the change set holding only those names with a change in the interval.
+   *
+   * This method is called from a single background thread.
+   *
+   * @param time the end of the interval in milliseconds since the epoch
+   * @param changes the metering deltas of the interval across all thread contexts
+   * @throws IOException if the export fails
+   */
+  public void export(long time, Probes.ChangeSet changes) throws IOException;
+
+  /**
+   * Called once following the final export.
+   *
+   * @throws IOException if the release of resources fails
+   */
+  public void close() throws IOException;
+
+}
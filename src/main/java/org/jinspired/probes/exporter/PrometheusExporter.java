@@ -0,0 +1,125 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.exporter;
+
+import org.jinspired.probes.Probes;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An exporter writing the cumulative metering of each name and meter in the Prometheus text format.<p>
+ * The file, named by <tt>probes.exporter.prometheus.file</tt> (default <tt>probes.prom</tt>), is replaced on each export
+ * and so can be picked up by the node exporter's textfile collector. The deltas of an interval are folded into running totals
+ * with the cost of doing so proportional to the names changed, though each export rewrites the file in full.
+ */
+public final class PrometheusExporter implements ProbesExporter {
+
+  private static final String[] METRICS = {"probes_count", "probes_total", "probes_inherent_total"};
+
+  private final Map<Probes.Name, Map<Probes.Name, long[]>> totals = new HashMap<Probes.Name, Map<Probes.Name, long[]>>();
+
+  private File file;
+
+  public void init(Probes.Environment environment) {
+    file = new File(environment.getString(Probes.parse("probes.exporter.prometheus.file"), "probes.prom"));
+  }
+
+  public void export(long time, Probes.ChangeSet changes) throws IOException {
+    for (Iterator<Probes.ChangePoint> it = changes.changepoints(); it.hasNext();) {
+      final Probes.ChangePoint cp = it.next();
+
+      Map<Probes.Name, long[]> meters = totals.get(cp.getName());
+      if (meters == null) totals.put(cp.getName(), meters = new HashMap<Probes.Name, long[]>(4));
+
+      for (Iterator<Probes.Change> cs = cp.changes(); cs.hasNext();) {
+        final Probes.Change c = cs.next();
+
+        long[] values = meters.get(c.getName());
+        if (values == null) meters.put(c.getName(), values = new long[METRICS.length]);
+
+        values[0] += c.getCount();
+        values[1] += c.getTotal();
+        values[2] += c.getInherentTotal();
+      }
+    }
+
+    final File tmp = new File(file.getPath() + ".tmp");
+    final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+    try {
+      write(out);
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      // not atomic on all platforms so fall back to replacing the file
+      if (!file.delete() || !tmp.renameTo(file)) throw new IOException("unable to replace: " + file);
+    }
+  }
+
+  private void write(Writer out) throws IOException {
+    for (int i = 0; i < METRICS.length; i++) {
+      out.write("# TYPE ");
+      out.write(METRICS[i]);
+      out.write(" counter\n");
+
+      for (Map.Entry<Probes.Name, Map<Probes.Name, long[]>> e : totals.entrySet()) {
+        final String name = escape(e.getKey().toString());
+        for (Map.Entry<Probes.Name, long[]> m : e.getValue().entrySet()) {
+          out.write(METRICS[i]);
+          out.write("{name=\"");
+          out.write(name);
+          out.write("\",meter=\"");
+          out.write(escape(m.getKey().toString()));
+          out.write("\"} ");
+          out.write(Long.toString(m.getValue()[i]));
+          out.write('\n');
+        }
+      }
+    }
+  }
+
+  private static String escape(String value) {
+    if (value.indexOf('\\') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+
+    final StringBuilder sb = new StringBuilder(value.length() + 8);
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '\n') {
+        sb.append("\\n");
+      } else {
+        if (c == '\\' || c == '"') sb.append('\\');
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  public void close() {
+    totals.clear();
+  }
+
+}
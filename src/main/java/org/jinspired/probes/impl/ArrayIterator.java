@@ -0,0 +1,55 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable {@code java.util.Iterator} over a range of an array.
+ */
+final class ArrayIterator<T> implements Iterator<T> {
+
+  private final Object[] elements;
+  private final int limit;
+  private int index;
+
+  ArrayIterator(Object[] elements) {
+    this(elements, elements.length);
+  }
+
+  ArrayIterator(Object[] elements, int limit) {
+    this.elements = elements;
+    this.limit = limit;
+  }
+
+  public boolean hasNext() {
+    return index < limit;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T next() {
+    if (index >= limit) throw new NoSuchElementException();
+    return (T) elements[index++];
+  }
+
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+}
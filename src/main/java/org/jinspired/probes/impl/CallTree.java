@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+/**
+ * The call tree of a context aggregating the metering of each probe by its path of enclosing metered probes.<p>
+ * A node is keyed by its parent node and name, with the children of a node held in a small array scanned linearly
+ * until it outgrows {@link Node#INLINE} entries after which it is an open addressed table keyed by name id.
+ * Nodes are created once and reused so that a firing does not allocate once the paths have been seen.
+ * Paths deeper than the depth cap, or new once the node cap has been reached, are not aggregated within the tree.
+ */
+final class CallTree {
+
+  static final String ENABLED = "probes.calltree";
+  static final String DEPTH = "probes.calltree.depth";
+  static final String NODES = "probes.calltree.nodes";
+
+  final Node root = new Node(null, null, 0, 0);
+
+  private final int depth;
+  private final int nodes;
+  private int size;
+
+  CallTree(int depth, int nodes) {
+    this.depth = depth;
+    this.nodes = nodes;
+  }
+
+  /**
+   * Returns the child node of the parent with the name creating it if within the caps, otherwise <tt>null</tt>.
+   */
+  Node child(Node parent, NameImpl name, int meters) {
+    final Node child = parent.child(name);
+    if (child != null || parent.depth >= depth || size >= nodes) return child;
+
+    size++;
+    return parent.add(new Node(parent, name, meters, size));
+  }
+
+  static final class Node {
+
+    static final int INLINE = 8;
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    final Node parent;
+    final NameImpl name;
+    final int depth;
+
+    /**
+     * The id of the node within its tree in order of creation, zero for the root.
+     */
+    final int id;
+
+    /**
+     * The aggregated metering of the path, <tt>null</tt> for the root.
+     */
+    final Stats stats;
+
+    /**
+     * The node of the merged tree, read and written only by the {@link Snapshotter}.
+     */
+    PathTable.Node merged;
+
+    private Node[] children = NO_CHILDREN;
+    private int count;
+
+    Node(Node parent, NameImpl name, int meters, int id) {
+      this.parent = parent;
+      this.name = name;
+      this.id = id;
+      this.depth = parent == null ? 0 : parent.depth + 1;
+      this.stats = parent == null ? null : new Stats(name, this, meters);
+    }
+
+    Node child(NameImpl name) {
+      final Node[] c = children;
+      if (c.length <= INLINE) {
+        for (int i = 0; i < count; i++) {
+          if (c[i].name == name) return c[i];
+        }
+        return null;
+      }
+
+      final int mask = c.length - 1;
+      for (int i = name.id & mask; c[i] != null; i = (i + 1) & mask) {
+        if (c[i].name == name) return c[i];
+      }
+      return null;
+    }
+
+    private Node add(Node child) {
+      Node[] c = children;
+      if (c.length <= INLINE && count < INLINE) {
+        if (count == c.length) children = c = grow(c, Math.max(2, c.length << 1));
+        c[count++] = child;
+        return child;
+      }
+
+      // keep the table at most half full
+      if ((count + 1) << 1 > c.length || c.length <= INLINE) {
+        final Node[] table = new Node[Math.max(INLINE << 2, c.length << 1)];
+        for (Node n : c) {
+          if (n != null) put(table, n);
+        }
+        children = c = table;
+      }
+      put(c, child);
+      count++;
+      return child;
+    }
+
+    private static void put(Node[] table, Node node) {
+      final int mask = table.length - 1;
+      int i = node.name.id & mask;
+      while (table[i] != null) i = (i + 1) & mask;
+      table[i] = node;
+    }
+
+    private static Node[] grow(Node[] nodes, int length) {
+      final Node[] grown = new Node[length];
+      System.arraycopy(nodes, 0, grown, 0, nodes.length);
+      return grown;
+    }
+
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+/**
+ * The reference implementation of {@link Probes.Change Change}.
+ */
+final class ChangeImpl implements Probes.Change {
+
+  private final NameImpl name;
+  final long count;
+  final long total;
+  final long inherentTotal;
+
+  ChangeImpl(NameImpl name, long count, long total, long inherentTotal) {
+    this.name = name;
+    this.count = count;
+    this.total = total;
+    this.inherentTotal = inherentTotal;
+  }
+
+  public Probes.Name getName() {
+    return name;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  public double getAvg() {
+    return count == 0 ? 0D : (double) total / count;
+  }
+
+  public long getInherentTotal() {
+    return inherentTotal;
+  }
+
+  public double getInherentAvg() {
+    return count == 0 ? 0D : (double) inherentTotal / count;
+  }
+
+  @Override
+  public String toString() {
+    return name + "[count=" + count + ", total=" + total + ", inherent=" + inherentTotal + "]";
+  }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.util.Iterator;
+
+/**
+ * The reference implementation of {@link Probes.ChangePoint ChangePoint}.
+ */
+final class ChangePointImpl implements Probes.ChangePoint {
+
+  private final NameImpl name;
+  final ChangeImpl[] changes;
+
+  ChangePointImpl(NameImpl name, ChangeImpl[] changes) {
+    this.name = name;
+    this.changes = changes;
+  }
+
+  public Probes.Name getName() {
+    return name;
+  }
+
+  public Iterator<Probes.Change> changes() {
+    return new ArrayIterator<Probes.Change>(changes);
+  }
+
+  public Probes.Change change(Probes.Name name) {
+    return ChangeSetImpl.find(changes, name);
+  }
+
+  @Override
+  public String toString() {
+    return name.toString();
+  }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The reference implementation of {@link Probes.ChangeSet ChangeSet}.<p>
+ * The changes are computed eagerly from the (count, total, inherent total) triples laid out in {@link Stats} values
+ * so that the change set does not hold onto the metering data it was derived from.
+ */
+final class ChangeSetImpl implements Probes.ChangeSet {
+
+  private static final ChangeImpl[] NO_CHANGES = new ChangeImpl[0];
+
+  private final ChangeImpl[] changes;
+  private final ChangePointImpl[] changepoints;
+  private final HashMap<Probes.Name, ChangePointImpl> index;
+
+  private ChangeSetImpl(ChangeImpl[] changes, ChangePointImpl[] changepoints) {
+    this.changes = changes;
+    this.changepoints = changepoints;
+    this.index = new HashMap<Probes.Name, ChangePointImpl>(changepoints.length * 2);
+    for (ChangePointImpl cp : changepoints) index.put(cp.getName(), cp);
+  }
+
+  /**
+   * Creates a change set from the thread level and per name id values of a newer and older metering state.
+   */
+  static ChangeSetImpl create(Provider provider, long[] newTotal, long[][] newer, long[] oldTotal, long[][] older) {
+    final List<ChangePointImpl> changepoints = new ArrayList<ChangePointImpl>();
+
+    for (int id = 0; id < newer.length; id++) {
+      final long[] values = newer[id];
+      if (values == null) continue;
+
+      final ChangeImpl[] changes = diff(provider, values, id < older.length ? older[id] : null);
+      if (changes.length > 0) changepoints.add(new ChangePointImpl(provider.names.get(id), changes));
+    }
+
+    return new ChangeSetImpl(diff(provider, newTotal, oldTotal),
+                             changepoints.toArray(new ChangePointImpl[changepoints.size()]));
+  }
+
+  /**
+   * Creates a change set from the thread level deltas and the deltas of the listed names held in an array indexed by name id.
+   */
+  static ChangeSetImpl create(Provider provider, long[] total, long[][] deltas, int[] ids, int size) {
+    final List<ChangePointImpl> changepoints = new ArrayList<ChangePointImpl>(size);
+
+    for (int i = 0; i < size; i++) {
+      final int id = ids[i];
+      final ChangeImpl[] changes = diff(provider, deltas[id], null);
+      if (changes.length > 0) changepoints.add(new ChangePointImpl(provider.names.get(id), changes));
+    }
+
+    return new ChangeSetImpl(diff(provider, total, null),
+                             changepoints.toArray(new ChangePointImpl[changepoints.size()]));
+  }
+
+  private static ChangeImpl[] diff(Provider provider, long[] newer, long[] older) {
+    List<ChangeImpl> changes = null;
+
+    for (int i = 0; i + Stats.FIELDS <= newer.length; i += Stats.FIELDS) {
+      final boolean base = older != null && i < older.length;
+
+      final long count = newer[i + Stats.COUNT] - (base ? older[i + Stats.COUNT] : 0L);
+      if (count <= 0) continue;
+
+      final long total = newer[i + Stats.TOTAL] - (base ? older[i + Stats.TOTAL] : 0L);
+      final long inherent = newer[i + Stats.INHERENT] - (base ? older[i + Stats.INHERENT] : 0L);
+
+      if (changes == null) changes = new ArrayList<ChangeImpl>(2);
+      changes.add(new ChangeImpl(provider.meterAt(i / Stats.FIELDS).name, count, total, inherent));
+    }
+
+    return changes == null ? NO_CHANGES : changes.toArray(new ChangeImpl[changes.size()]);
+  }
+
+  static ChangeImpl find(ChangeImpl[] changes, Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+
+    for (ChangeImpl change : changes) {
+      if (change.getName() == name) return change;
+    }
+    return null;
+  }
+
+  public Iterator<Probes.Change> changes() {
+    return new ArrayIterator<Probes.Change>(changes);
+  }
+
+  public Probes.Change change(Probes.Name name) {
+    return find(changes, name);
+  }
+
+  public Iterator<Probes.ChangePoint> changepoints() {
+    return new ArrayIterator<Probes.ChangePoint>(changepoints);
+  }
+
+  public Probes.ChangePoint changepoint(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+
+    final ChangePointImpl cp = index.get(name);
+    if (cp != null) return cp;
+
+    // a group name so aggregate the changes of all probe names it prefixes
+    final List<ChangeImpl> changes = new ArrayList<ChangeImpl>();
+    for (ChangePointImpl p : changepoints) {
+      if (!p.getName().startsWith(name)) continue;
+      for (ChangeImpl c : p.changes) merge(changes, c);
+    }
+
+    return changes.isEmpty() ? null : new ChangePointImpl((NameImpl) name, changes.toArray(new ChangeImpl[changes.size()]));
+  }
+
+  private static void merge(List<ChangeImpl> changes, ChangeImpl change) {
+    for (int i = 0; i < changes.size(); i++) {
+      final ChangeImpl c = changes.get(i);
+      if (c.getName() == change.getName()) {
+        changes.set(i, new ChangeImpl((NameImpl) c.getName(),
+                                      c.count + change.count,
+                                      c.total + change.total,
+                                      c.inherentTotal + change.inherentTotal));
+        return;
+      }
+    }
+    changes.add(change);
+  }
+
+}
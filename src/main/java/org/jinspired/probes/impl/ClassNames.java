@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The cache of the {@link NameImpl} of each class, weakly keyed so that a cached class does not pin its class loader.<p>
+ * Entries are chained within buckets by identity hash. A chain is never changed, only replaced, so a lookup is lock free
+ * and does not allocate, with additions serialized on the cache. Entries of classes that have been collected are
+ * expunged on the next addition. The names of methods are held as children of the class name so need no table of their own.
+ */
+final class ClassNames {
+
+  private final Names names;
+  private final ReferenceQueue<Class> queue = new ReferenceQueue<Class>();
+
+  private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(64);
+  private int size;
+
+  ClassNames(Names names) {
+    this.names = names;
+  }
+
+  /**
+   * Returns the name of the class with the parsed package as its prefix creating and caching it on the first lookup.
+   */
+  NameImpl get(Class cls) {
+    if (cls == null) throw new NullPointerException("cls");
+
+    final int hash = System.identityHashCode(cls);
+    final AtomicReferenceArray<Entry> t = table;
+    for (Entry e = t.get(hash & (t.length() - 1)); e != null; e = e.next) {
+      if (e.get() == cls) return e.name;
+    }
+
+    return add(cls, hash);
+  }
+
+  private synchronized NameImpl add(Class cls, int hash) {
+    expunge();
+
+    AtomicReferenceArray<Entry> t = table;
+    final int i = hash & (t.length() - 1);
+    for (Entry e = t.get(i); e != null; e = e.next) {
+      if (e.get() == cls) return e.name;
+    }
+
+    final String name = cls.getName();
+    final int dot = name.lastIndexOf('.');
+
+    final NameImpl result = dot < 0 ? names.name(name) : (NameImpl) names.parse(name.substring(0, dot)).name(name.substring(dot + 1));
+    result.label(LabelImpl.JAVA);
+    result.label(LabelImpl.CLASS);
+
+    t.set(i, new Entry(cls, hash, result, t.get(i), queue));
+    if (++size > t.length() * 3 / 4) resize();
+
+    return result;
+  }
+
+  /**
+   * Replaces the chains holding the entries of collected classes.
+   */
+  private void expunge() {
+    boolean collected = false;
+    while (queue.poll() != null) collected = true;
+    if (!collected) return;
+
+    final AtomicReferenceArray<Entry> t = table;
+    for (int i = 0; i < t.length(); i++) {
+      boolean stale = false;
+      for (Entry e = t.get(i); e != null && !stale; e = e.next) stale = e.get() == null;
+      if (stale) t.set(i, copy(t.get(i), null));
+    }
+  }
+
+  private void resize() {
+    final AtomicReferenceArray<Entry> t = table;
+    final AtomicReferenceArray<Entry> grown = new AtomicReferenceArray<Entry>(t.length() << 1);
+    int live = 0;
+    for (int i = 0; i < t.length(); i++) {
+      for (Entry e = t.get(i); e != null; e = e.next) {
+        final Class cls = e.get();
+        if (cls == null) continue;
+
+        final int j = e.hash & (grown.length() - 1);
+        grown.set(j, new Entry(cls, e.hash, e.name, grown.get(j), queue));
+        live++;
+      }
+    }
+    size = live;
+    table = grown;
+  }
+
+  /**
+   * Returns a copy of the chain without the entries of collected classes.
+   */
+  private Entry copy(Entry chain, Entry tail) {
+    Entry copy = tail;
+    for (Entry e = chain; e != null; e = e.next) {
+      final Class cls = e.get();
+      if (cls != null) copy = new Entry(cls, e.hash, e.name, copy, queue);
+      else size--;
+    }
+    return copy;
+  }
+
+  private static final class Entry extends WeakReference<Class> {
+
+    final int hash;
+    final NameImpl name;
+    final Entry next;
+
+    Entry(Class cls, int hash, NameImpl name, Entry next, ReferenceQueue<Class> queue) {
+      super(cls, queue);
+      this.hash = hash;
+      this.name = name;
+      this.next = next;
+    }
+
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The writer of the merged call tree in the collapsed stack format, <tt>a;b;c 42</tt>, read by flame graph tools.<p>
+ * A line is written for each path with a non-zero value for the meter, either its inherent or total value, as the tree is walked
+ * so that only the current path is held in memory. When <tt>probes.flamegraph.file</tt> is set in call tree mode the file is
+ * replaced at each snapshot, with <tt>probes.flamegraph.meter</tt> naming the meter (the first by default) and
+ * <tt>probes.flamegraph.values</tt> being <tt>inherent</tt> (the default) or <tt>total</tt>.
+ */
+final class CollapsedStacks {
+
+  static final String FILE = "probes.flamegraph.file";
+  static final String METER = "probes.flamegraph.meter";
+  static final String VALUES = "probes.flamegraph.values";
+
+  private final File file;
+  private final Provider provider;
+  private final String meter;
+  private final boolean inherent;
+
+  private CollapsedStacks(Provider provider, File file, String meter, boolean inherent) {
+    this.provider = provider;
+    this.file = file;
+    this.meter = meter;
+    this.inherent = inherent;
+  }
+
+  static boolean enabled(EnvironmentImpl env, Names names) {
+    return env.getString(names.parse(FILE)) != null && env.getBoolean(names.parse(CallTree.ENABLED), false);
+  }
+
+  /**
+   * Returns the configured writer or <tt>null</tt> if not enabled.
+   */
+  static CollapsedStacks create(Provider provider) {
+    final EnvironmentImpl env = provider.environment;
+    final Names names = provider.names;
+    if (!enabled(env, names)) return null;
+
+    return new CollapsedStacks(provider,
+                               new File(env.getString(names.parse(FILE))),
+                               env.getString(names.parse(METER)),
+                               inherent(env.getString(names.parse(VALUES), "inherent")));
+  }
+
+  static boolean inherent(String values) {
+    if ("inherent".equals(values)) return true;
+    if ("total".equals(values)) return false;
+    throw new IllegalStateException("unsupported values: " + values);
+  }
+
+  /**
+   * Replaces the file with the collapsed stacks of the tree.
+   */
+  void write(PathTable paths) throws IOException {
+    final MeterImpl m = meter != null ? (MeterImpl) provider.meter(provider.names.parse(meter)) : null;
+    if (meter != null && m == null) throw new IOException("unknown meter: " + meter);
+
+    final File tmp = new File(file.getPath() + ".tmp");
+    final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+    try {
+      write(out, paths.root, m != null ? m.index : 0, inherent);
+    } finally {
+      out.close();
+    }
+
+    if (!tmp.renameTo(file)) {
+      if (!file.delete() || !tmp.renameTo(file)) throw new IOException("unable to replace: " + file);
+    }
+  }
+
+  /**
+   * Writes the collapsed stacks of the paths beneath the node.
+   */
+  static void write(Writer out, PathTable.Node start, int meter, boolean inherent) throws IOException {
+    final int field = inherent ? Stats.INHERENT : Stats.TOTAL;
+
+    // the current path with the stack holding the nodes still to be written and the path length at which each is appended
+    final StringBuilder path = new StringBuilder(256);
+    final List<PathTable.Node> nodes = new ArrayList<PathTable.Node>();
+    final List<Integer> lengths = new ArrayList<Integer>();
+    push(nodes, lengths, start.children, 0);
+
+    while (!nodes.isEmpty()) {
+      final int last = nodes.size() - 1;
+      final PathTable.Node node = nodes.remove(last);
+
+      path.setLength(lengths.remove(last));
+      if (path.length() > 0) path.append(';');
+      append(path, node.name.toString());
+
+      final long value = Table.value(node.values, meter, field);
+      if (value > 0L) {
+        out.append(path);
+        out.write(' ');
+        out.write(Long.toString(value));
+        out.write('\n');
+      }
+
+      push(nodes, lengths, node.children, path.length());
+    }
+  }
+
+  private static void push(List<PathTable.Node> nodes, List<Integer> lengths, PathTable.Node[] children, int length) {
+    for (int i = children.length - 1; i >= 0; i--) {
+      nodes.add(children[i]);
+      lengths.add(length);
+    }
+  }
+
+  private static void append(StringBuilder path, String name) {
+    for (int i = 0; i < name.length(); i++) {
+      final char c = name.charAt(i);
+      // the frame and value delimiters of the format
+      path.append(c == ';' || c == ' ' || c == '\n' ? '_' : c);
+    }
+  }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.interceptor.ProbesInterceptor;
+import org.jinspired.probes.interceptor.ProbesInterceptorFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An interceptor factory limiting the number of concurrent firings of each matching name, protecting an overloaded
+ * downstream resource before its latency collapses.<p>
+ * A firing beyond the limit waits for a permit up to the timeout and is then rejected with a {@link RejectedExecutionException}
+ * thrown from {@code Probe.begin()}, with the probe left unfired. The permits of a name are split into stripes,
+ * one per processor, each acquired with a compare and swap, with a thread taking from another stripe when its own is exhausted.<p>
+ * The limit is adjusted on each end from the delta of the first meter, by additive increase while the limit is in use
+ * and multiplicative decrease when the delta exceeds the tolerance times the lowest delta seen within the window.
+ * A firing that waited for a permit is not sampled so that queuing does not feed back into the limit.
+ * The following values are read from the environment:
+ * <ul>
+ * <li><tt>probes.limiter.names</tt> - the comma separated patterns of the names limited, as for <tt>probes.include</tt></li>
+ * <li><tt>probes.limiter.initial</tt>, <tt>probes.limiter.min</tt> and <tt>probes.limiter.max</tt> - the limits, defaulting to <tt>20</tt>, <tt>1</tt> and <tt>1000</tt></li>
+ * <li><tt>probes.limiter.timeout</tt> - the milliseconds a firing waits for a permit, rejected immediately by default</li>
+ * <li><tt>probes.limiter.tolerance</tt> - the ratio of a delta to the lowest delta deemed overloaded, defaults to <tt>2.0</tt></li>
+ * <li><tt>probes.limiter.window</tt> - the number of samples after which the lowest delta is reset, defaults to <tt>1000</tt></li>
+ * </ul>
+ * Rejections are counted by the <tt>probes.limiter.rejections</tt> process wide counter.
+ */
+public final class ConcurrencyLimiter implements ProbesInterceptorFactory {
+
+  static final String NAMES = "probes.limiter.names";
+
+  private static final Limit NONE = new Limit(0, 0.0D);
+
+  private Rules rules;
+  private double initial;
+  private double min;
+  private double max;
+  private long timeout;
+  private double tolerance;
+  private int window;
+  private int stripes;
+  private Probes.Counter rejections;
+
+  private volatile AtomicReferenceArray<Limit> limits = new AtomicReferenceArray<Limit>(1024);
+
+  public void init(Probes.Environment environment) {
+    final String names = environment.getString(Probes.parse(NAMES));
+    if (names == null) throw new IllegalStateException(NAMES + " not set");
+
+    rules = Rules.compile(names, null);
+    initial = environment.getDouble(Probes.parse("probes.limiter.initial"), 20.0D);
+    min = environment.getDouble(Probes.parse("probes.limiter.min"), 1.0D);
+    max = environment.getDouble(Probes.parse("probes.limiter.max"), 1000.0D);
+    timeout = environment.getLong(Probes.parse("probes.limiter.timeout"), 0L) * 1000000L;
+    tolerance = environment.getDouble(Probes.parse("probes.limiter.tolerance"), 2.0D);
+    window = environment.getInt(Probes.parse("probes.limiter.window"), 1000);
+    stripes = Math.min(GlobalCounterImpl.stripes(), 16);
+    rejections = Probes.counter(Probes.parse("probes.limiter.rejections"));
+
+    if (min < 1.0D || initial < min || max < initial) throw new IllegalStateException("probes.limiter limits: " + min + ", " + initial + ", " + max);
+    if (tolerance <= 1.0D) throw new IllegalStateException("probes.limiter.tolerance: " + tolerance);
+    if (window <= 0) throw new IllegalStateException("probes.limiter.window: " + window);
+  }
+
+  public ProbesInterceptor create(Probes.Context context) {
+    return new Interceptor();
+  }
+
+  /**
+   * Returns the limit of the name, {@link #NONE} if the name is not limited.
+   */
+  private Limit limit(NameImpl name) {
+    final AtomicReferenceArray<Limit> ls = limits;
+    final Limit limit = name.id < ls.length() ? ls.get(name.id) : null;
+    return limit != null ? limit : create(name);
+  }
+
+  private synchronized Limit create(NameImpl name) {
+    AtomicReferenceArray<Limit> ls = limits;
+    if (name.id >= ls.length()) {
+      final AtomicReferenceArray<Limit> grown = new AtomicReferenceArray<Limit>(Math.max(ls.length() << 1, name.id + 1));
+      for (int i = 0; i < ls.length(); i++) grown.set(i, ls.get(i));
+      limits = ls = grown;
+    }
+
+    Limit limit = ls.get(name.id);
+    if (limit == null) {
+      limit = rules.excluded(rules.states(name)) ? NONE : new Limit(stripes, initial);
+      ls.set(name.id, limit);
+    }
+    return limit;
+  }
+
+  /**
+   * The permits and adaptive limit of a name. The in flight count of each stripe is padded to its own cache line.
+   */
+  private static final class Limit {
+
+    private static final int PAD = 16;
+
+    final int stripes;
+    final AtomicIntegerArray inflight;
+    final AtomicLong limit;
+    final AtomicLong lowest = new AtomicLong(Long.MAX_VALUE);
+    final AtomicLong samples = new AtomicLong();
+    volatile long decreased;
+
+    Limit(int stripes, double limit) {
+      this.stripes = stripes;
+      this.inflight = new AtomicIntegerArray((stripes + 1) * PAD);
+      this.limit = new AtomicLong(Double.doubleToLongBits(limit));
+    }
+
+    double limit() {
+      return Double.longBitsToDouble(limit.get());
+    }
+
+    /**
+     * Returns the stripe a permit was acquired from starting with the thread's own stripe, or <tt>-1</tt> if none are available.
+     */
+    int acquire() {
+      final int permits = (int) limit();
+      final int home = (int) Thread.currentThread().getId() % stripes;
+      for (int k = 0; k < stripes; k++) {
+        final int s = (home + k) % stripes;
+        // the permits are split evenly with the remainder going to the lowest stripes
+        final int capacity = permits / stripes + (s < permits % stripes ? 1 : 0);
+        final int i = (s + 1) * PAD;
+        int n;
+        while ((n = inflight.get(i)) < capacity) {
+          if (inflight.compareAndSet(i, n, n + 1)) return s;
+        }
+      }
+      return -1;
+    }
+
+    void release(int stripe) {
+      inflight.decrementAndGet((stripe + 1) * PAD);
+    }
+
+    boolean saturated() {
+      int n = 0;
+      for (int s = 0; s < stripes; s++) n += inflight.get((s + 1) * PAD);
+      return n + 1 >= (int) limit();
+    }
+
+    void update(double current, double update) {
+      limit.compareAndSet(Double.doubleToLongBits(current), Double.doubleToLongBits(update));
+    }
+
+  }
+
+  /**
+   * The interceptor of a context holding the stripes acquired by the probes begun as a stack, as ends are dispatched in reverse order.
+   */
+  private final class Interceptor implements ProbesInterceptor {
+
+    private static final int UNLIMITED = -1;
+    private static final int WAITED = 1 << 16;
+
+    private int[] acquired = new int[16];
+    private int depth;
+
+    public void begin(Probes.Probe probe) {
+      final Limit limit = limit(((ProbeImpl) probe).name);
+
+      int stripe = UNLIMITED;
+      if (limit != NONE) {
+        stripe = limit.acquire();
+        if (stripe < 0) stripe = await(probe, limit);
+      }
+
+      if (depth == acquired.length) {
+        final int[] grown = new int[depth << 1];
+        System.arraycopy(acquired, 0, grown, 0, depth);
+        acquired = grown;
+      }
+      acquired[depth++] = stripe;
+    }
+
+    private int await(Probes.Probe probe, Limit limit) {
+      final long deadline = System.nanoTime() + timeout;
+      long park = 1000L;
+      while (timeout > 0L && System.nanoTime() < deadline) {
+        LockSupport.parkNanos(park);
+        park = Math.min(park << 1, 1000000L);
+
+        final int stripe = limit.acquire();
+        if (stripe >= 0) return stripe | WAITED;
+      }
+
+      rejections.inc();
+      throw new RejectedExecutionException("concurrency limit of " + (int) limit.limit() + " reached for: " + probe.getName());
+    }
+
+    public void end(Probes.Probe probe) {
+      final int stripe = acquired[--depth];
+      if (stripe == UNLIMITED) return;
+
+      final ProbeImpl p = (ProbeImpl) probe;
+      final Limit limit = limit(p.name);
+      final boolean saturated = limit.saturated();
+      limit.release(stripe & ~WAITED);
+
+      if ((stripe & WAITED) == 0 && p.state > 0 && p.readings.length > 0) sample(limit, p.readings[ProbeImpl.HIGH] - p.readings[ProbeImpl.LOW], saturated);
+    }
+
+    private void sample(Limit limit, long delta, boolean saturated) {
+      final long n = limit.samples.incrementAndGet();
+      if (n % window == 0) limit.lowest.set(delta);
+
+      long lowest;
+      while (delta < (lowest = limit.lowest.get()) && !limit.lowest.compareAndSet(lowest, delta)) {
+        // retry
+      }
+
+      final double current = limit.limit();
+      if (delta > tolerance * Math.max(lowest, 1L)) {
+        // at most one decrease within as many samples as the limit so a burst of slow firings decreases it once
+        if (n - limit.decreased >= (long) current) {
+          limit.decreased = n;
+          limit.update(current, Math.max(min, current * 0.9D));
+        }
+      } else if (saturated) {
+        limit.update(current, Math.min(max, current + 1.0D / current));
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,474 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * The reference implementation of {@link Probes.Context Context}.<p>
+ * All state is confined to the context's thread. Counters and aggregated metering are held in dense arrays indexed by name id.
+ * When snapshots are enabled the aggregated metering is also read by the {@link Snapshotter}, with each recording guarded
+ * by a sequence lock and the stats it changes added to one of two changed lists alternated on each snapshot.
+ * When details are enabled a histogram of the first meter is kept for each name along with stats for each caller of a name.
+ * In call tree mode the metering is also aggregated by path within a {@link CallTree}.
+ * A firing at full fidelity records the histogram of its name and begins capturing the call tree beneath it when not otherwise enabled.
+ * The most recent firings are kept in a {@link Ring} when enabled, and all firings written by a {@link Recorder} when recording.
+ * In off-heap mode the aggregated metering of each name is held in a {@link Slab} rather than in {@link Stats},
+ * with the ids of the names changed added to the alternated changed lists.
+ * The context of an actor of a {@link Simulation} is confined to the thread running the simulation, bound as the thread's context
+ * while the actor's events are dispatched.
+ */
+final class ContextImpl implements Probes.Context {
+
+  private static final AtomicIntegerFieldUpdater<ContextImpl> SEQ = AtomicIntegerFieldUpdater.newUpdater(ContextImpl.class, "seq");
+
+  final Provider provider;
+  final EnvironmentImpl environment;
+  final Thread thread;
+  final Simulation simulation;
+  private final String name;
+
+  /**
+   * Whether the context has been released by its simulation, so is removed from the snapshot registry as when its thread terminates.
+   */
+  volatile boolean closed;
+
+  private final boolean snapshots;
+  private final boolean details;
+  private final Edges edges;
+  private CallTree tree;
+  final Ring ring;
+  final Recorder recorder;
+  private volatile int seq;
+  private volatile int epoch;
+  private final Stats[][] changed;
+  private final int[] sizes;
+  private final int[][] changedIds;
+  private final int[] idSizes;
+
+  private Slab slab;
+
+  /**
+   * The slab values as of the previous snapshot, read and written only by the {@link Snapshotter}.
+   */
+  Slab exported;
+
+  private Layers layers;
+
+  private CounterImpl[] counters = new CounterImpl[64];
+  private Stats[] stats = new Stats[256];
+  private final Stats total;
+
+  ProbeImpl top;
+
+  ContextImpl(Provider provider, Thread thread, Extensions extensions, Simulation simulation, String name) {
+    this.provider = provider;
+    this.thread = thread;
+    this.simulation = simulation;
+    this.name = name;
+    this.environment = new EnvironmentImpl(provider.names, provider.environment);
+    this.total = new Stats(null, provider.meterCount());
+
+    this.snapshots = provider.snapshots;
+    this.changed = snapshots ? new Stats[][] {new Stats[64], new Stats[64]} : null;
+    this.sizes = snapshots ? new int[2] : null;
+
+    this.slab = provider.offheap ? new Slab(provider.meterCount() * Stats.FIELDS) : null;
+    this.changedIds = snapshots && slab != null ? new int[][] {new int[64], new int[64]} : null;
+    this.idSizes = changedIds != null ? new int[2] : null;
+
+    this.details = provider.details;
+    this.edges = details ? new Edges() : null;
+    this.tree = provider.calltree ? new CallTree(provider.calltreeDepth, provider.calltreeNodes) : null;
+    this.ring = provider.ring > 0 ? new Ring(provider.ring, provider.meterCount()) : null;
+    this.recorder = simulation == null ? Recorder.create(provider, thread) : null;
+
+    this.layers = new Layers(this, extensions, null);
+  }
+
+  /**
+   * Returns the layers for the current provider stack snapshot recreating them if the stack has changed.
+   */
+  Layers layers() {
+    final Layers l = layers;
+    final Extensions e = provider.stack();
+    return l.extensions == e ? l : (layers = new Layers(this, e, l));
+  }
+
+  public String getName() {
+    return name != null ? name : thread.getName();
+  }
+
+  public Probes.Probe create(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+    return new ProbeImpl(this, (NameImpl) name);
+  }
+
+  public Probes.Probe begin(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+
+    final ProbeImpl probe = new ProbeImpl(this, (NameImpl) name);
+    probe.begin();
+    return probe;
+  }
+
+  public Probes.Probe run(Runnable runnable) {
+    if (runnable == null) throw new NullPointerException("runnable");
+
+    final ProbeImpl probe = new ProbeImpl(this, (NameImpl) provider.name(runnable.getClass()).name("run"));
+    probe.run(runnable);
+    return probe;
+  }
+
+  public Probes.SavePoint savepoint() {
+    return savepoint(null);
+  }
+
+  public Probes.SavePoint savepoint(Probes.SavePoint savepoint) {
+    SavePointImpl sp = savepoint instanceof SavePointImpl ? (SavePointImpl) savepoint : null;
+    if (sp == null || sp.context != this) sp = new SavePointImpl(this);
+
+    sp.total = copy(total.values, sp.total);
+
+    final Slab sl = slab;
+    if (sl != null) {
+      final int n = provider.names.size();
+      long[][] values = sp.values;
+      if (values == null || values.length != n) values = new long[n][];
+      for (int i = 0; i < n; i++) {
+        values[i] = sl.mark(i) != 0L ? sl.copy(i, values[i]) : null;
+      }
+      sp.values = values;
+      return sp;
+    }
+
+    final Stats[] s = stats;
+    long[][] values = sp.values;
+    if (values == null || values.length != s.length) values = new long[s.length][];
+    for (int i = 0; i < s.length; i++) {
+      values[i] = s[i] != null ? copy(s[i].values, values[i]) : null;
+    }
+    sp.values = values;
+
+    return sp;
+  }
+
+  private static long[] copy(long[] src, long[] dst) {
+    if (dst == null || dst.length != src.length) dst = new long[src.length];
+    System.arraycopy(src, 0, dst, 0, src.length);
+    return dst;
+  }
+
+  public Probes.ChangeSet compare(Probes.SavePoint savepoint) {
+    if (savepoint == null) throw new NullPointerException("savepoint");
+
+    final SavePointImpl older = (SavePointImpl) savepoint;
+    if (slab != null) return savepoint().compare(older);
+
+    // the change set is computed eagerly so the live values can be used without copying
+    final Stats[] s = stats;
+    final long[][] values = new long[s.length][];
+    for (int i = 0; i < s.length; i++) {
+      if (s[i] != null) values[i] = s[i].values;
+    }
+
+    return ChangeSetImpl.create(provider, total.values, values, older.total, older.values);
+  }
+
+  public Probes.Environment getEnvironment() {
+    return environment;
+  }
+
+  public Iterator<Probes.Meter> meters() {
+    return new ArrayIterator<Probes.Meter>(layers().meters);
+  }
+
+  public Probes.Counter counter(Probes.Name name) {
+    final int id = ((NameImpl) name).id;
+
+    final CounterImpl[] cs = counters;
+    if (id < cs.length) {
+      final CounterImpl counter = cs[id];
+      if (counter != null) return counter;
+    }
+
+    return newCounter((NameImpl) name);
+  }
+
+  private CounterImpl newCounter(NameImpl name) {
+    CounterImpl[] cs = counters;
+    if (name.id >= cs.length) {
+      final CounterImpl[] grown = new CounterImpl[Math.max(cs.length << 1, name.id + 1)];
+      System.arraycopy(cs, 0, grown, 0, cs.length);
+      counters = cs = grown;
+    }
+    return cs[name.id] = new CounterImpl(name);
+  }
+
+  public void dump(Appendable out) throws IOException {
+    if (out == null) throw new NullPointerException("out");
+    if (ring != null) ring.dump(out, provider.names);
+  }
+
+  /**
+   * Returns the call tree node of a beginning metered probe, <tt>null</tt> if not in call tree mode or the path is beyond the tree caps.
+   * Outside of call tree mode a probe at full fidelity is rooted at the tree, created on first use, along with the probes beneath it.
+   */
+  CallTree.Node node(ProbeImpl probe) {
+    if (tree == null && !probe.full) return null;
+
+    ProbeImpl outer = probe.parent;
+    while (outer != null && outer.state <= 0) outer = outer.parent;
+
+    final CallTree.Node parent;
+    if (provider.calltree) {
+      parent = outer != null ? outer.node : tree.root;
+    } else if (outer != null && outer.node != null) {
+      parent = outer.node;
+    } else if (probe.full) {
+      if (tree == null) tree = new CallTree(provider.calltreeDepth, provider.calltreeNodes);
+      parent = tree.root;
+    } else {
+      parent = null;
+    }
+    return parent != null ? tree.child(parent, probe.name, provider.meterCount()) : null;
+  }
+
+  /**
+   * Aggregates the readings of an ended probe firing and passes its deltas up to the nearest metered enclosing probe.
+   */
+  void record(ProbeImpl probe, int count) {
+    ProbeImpl outer = probe.parent;
+    while (outer != null && outer.state <= 0) outer = outer.parent;
+
+    final MeterImpl[] meters = probe.layers.meters;
+    final MeterImpl[] outers = outer != null ? outer.layers.meters : null;
+
+    final Slab sl = slab(probe.name);
+    final Stats s = sl == null ? stats(probe.name) : null;
+    final int id = probe.name.id;
+    final Stats es = details && outer != null ? edges.get(outer.name, probe.name, provider.meterCount()) : null;
+    final Stats ns = probe.node != null ? probe.node.stats : null;
+
+    if (snapshots) {
+      // the odd sequence must be published before the epoch is read and the values changed
+      final int q = seq;
+      seq = q + 1;
+      final int e = epoch;
+      if (s == null) {
+        if (sl.mark(id) != e + 1L) changed(sl, id, e);
+      } else if (s.epoch != e) {
+        changed(s, e);
+      }
+      if (es != null && es.epoch != e) changed(es, e);
+      if (ns != null && ns.epoch != e) changed(ns, e);
+      if (outer == null && total.epoch != e) changed(total, e);
+    } else if (s == null && sl.mark(id) == 0L) {
+      sl.mark(id, 1L);
+    }
+
+    final long[] r = probe.readings;
+    for (int i = 0, o = 0; i < meters.length; i++, o += ProbeImpl.FIELDS) {
+      final long delta = r[o + ProbeImpl.HIGH] - r[o + ProbeImpl.LOW];
+      final int index = meters[i].index;
+
+      if (s == null) sl.add(id, index, count, delta, delta - r[o + ProbeImpl.INNER]);
+      else s.add(index, count, delta, delta - r[o + ProbeImpl.INNER]);
+
+      if (es != null) es.add(index, count, delta, delta - r[o + ProbeImpl.INNER]);
+      if (ns != null) ns.add(index, count, delta, delta - r[o + ProbeImpl.INNER]);
+      if ((details || probe.full) && index == 0 && s != null) s.histogram = Histogram.record(s.histogram, delta / count, count);
+
+      if (outer == null) {
+        total.add(index, count, delta, delta);
+      } else if (outers == meters) {
+        outer.readings[o + ProbeImpl.INNER] += delta;
+      } else {
+        // the outer probe began with a different set of meters
+        final int j = Extensions.indexOf(outers, meters[i]);
+        if (j >= 0) outer.readings[j * ProbeImpl.FIELDS + ProbeImpl.INNER] += delta;
+      }
+    }
+
+    if (snapshots) SEQ.lazySet(this, seq + 1);
+  }
+
+  private void changed(Stats s, int e) {
+    s.epoch = e;
+
+    final int list = e & 1;
+    final int size = sizes[list];
+
+    Stats[] c = changed[list];
+    if (size == c.length) {
+      final Stats[] grown = new Stats[size << 1];
+      System.arraycopy(c, 0, grown, 0, size);
+      changed[list] = c = grown;
+    }
+    c[size] = s;
+    sizes[list] = size + 1;
+  }
+
+  /**
+   * Returns the slab in off-heap mode widened if the provider has more meters than it has room for,
+   * and with the chunk of the name allocated, otherwise <tt>null</tt>.
+   */
+  private Slab slab(NameImpl name) {
+    Slab sl = slab;
+    if (sl == null) return null;
+
+    final int fields = provider.meterCount() * Stats.FIELDS;
+    if (fields > sl.fields) slab = sl = sl.widen(fields);
+    sl.alloc(name.id);
+    return sl;
+  }
+
+  private void changed(Slab sl, int id, int e) {
+    sl.mark(id, e + 1L);
+
+    final int list = e & 1;
+    final int size = idSizes[list];
+
+    int[] c = changedIds[list];
+    if (size == c.length) {
+      final int[] grown = new int[size << 1];
+      System.arraycopy(c, 0, grown, 0, size);
+      changedIds[list] = c = grown;
+    }
+    c[size] = id;
+    idSizes[list] = size + 1;
+  }
+
+  /**
+   * Switches recording to the other changed list returning the list of stats changed since the previous switch
+   * once any recording in progress has completed. Called only by the {@link Snapshotter}.
+   */
+  int flip() {
+    final int e = epoch;
+    epoch = e + 1;
+
+    final int q = seq;
+    if ((q & 1) != 0) {
+      while (seq == q) Thread.yield();
+    }
+
+    return e & 1;
+  }
+
+  Stats[] changed(int list) {
+    return changed[list];
+  }
+
+  int size(int list) {
+    return sizes[list];
+  }
+
+  /**
+   * Returns the ids of the names changed on the list in off-heap mode, otherwise <tt>null</tt>.
+   */
+  int[] changedIds(int list) {
+    return changedIds != null ? changedIds[list] : null;
+  }
+
+  int idSize(int list) {
+    return idSizes != null ? idSizes[list] : 0;
+  }
+
+  /**
+   * Empties a changed list no longer being recorded to. Called only by the {@link Snapshotter}.
+   */
+  void clear(int list) {
+    final Stats[] c = changed[list];
+    for (int i = 0, n = sizes[list]; i < n; i++) c[i] = null;
+    sizes[list] = 0;
+    if (idSizes != null) idSizes[list] = 0;
+  }
+
+  /**
+   * Returns a consistent copy of the stats values, retrying if the values were changed while being copied.
+   */
+  long[] read(Stats s, long[] copy) {
+    while (true) {
+      final int q = seq;
+      if ((q & 1) == 0) {
+        final long[] v = s.values;
+        if (copy == null || copy.length != v.length) copy = new long[v.length];
+        System.arraycopy(v, 0, copy, 0, v.length);
+        if (seq == q) return copy;
+      }
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Returns a consistent copy of the slab values of the name, retrying if the values were changed while being copied.
+   */
+  long[] read(int id, long[] copy) {
+    while (true) {
+      final int q = seq;
+      if ((q & 1) == 0) {
+        copy = slab.copy(id, copy);
+        if (seq == q) return copy;
+      }
+      Thread.yield();
+    }
+  }
+
+  /**
+   * Returns a consistent copy of the stats histogram or <tt>null</tt> if none has been recorded.
+   */
+  long[] histogram(Stats s, long[] copy) {
+    while (true) {
+      final int q = seq;
+      if ((q & 1) == 0) {
+        final long[] h = s.histogram;
+        if (h == null) return null;
+        if (copy == null || copy.length != h.length) copy = new long[h.length];
+        System.arraycopy(h, 0, copy, 0, h.length);
+        if (seq == q) return copy;
+      }
+      Thread.yield();
+    }
+  }
+
+  private Stats stats(NameImpl name) {
+    final int id = name.id;
+
+    Stats[] s = stats;
+    if (id < s.length) {
+      final Stats st = s[id];
+      if (st != null) return st;
+    } else {
+      final Stats[] grown = new Stats[Math.max(s.length << 1, id + 1)];
+      System.arraycopy(s, 0, grown, 0, s.length);
+      stats = s = grown;
+    }
+
+    return s[id] = new Stats(name, provider.meterCount());
+  }
+
+  @Override
+  public String toString() {
+    return getName();
+  }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The enforcement of the probe pairing contract of the Open API within the reference implementation.<p>
+ * A probe ended when not on the top of its context's stack, or begun again before being ended, violates the contract.
+ * Detection costs a single comparison with the stack depth stored in each probe used to locate it within the stack.
+ * The <tt>probes.contract</tt> value selects the policy applied on a violation:
+ * <ul>
+ * <li><tt>throw</tt> throws an {@link IllegalStateException} leaving the stack unchanged, for use in test</li>
+ * <li><tt>repair</tt> (the default) unwinds the stack by ending the probes begun since the probe, for use in production</li>
+ * <li><tt>count</tt> leaves the other probes on the stack as is, removing a probe ended out of order and dropping the earlier firing of a
+ * probe begun again unrecorded</li>
+ * </ul>
+ * All violations are counted by the process wide <tt>probes.contract.overlaps</tt>, <tt>probes.contract.rebegins</tt>
+ * and <tt>probes.contract.leaks</tt> counters, with the first violation of each kind by a probe name logged.
+ */
+public final class Contract {
+
+  static final String POLICY = "probes.contract";
+
+  static final int COUNT = 0;
+  static final int REPAIR = 1;
+  static final int THROW = 2;
+
+  private static final Logger LOGGER = Logger.getLogger(Contract.class.getName());
+
+  final int policy;
+
+  private final Probes.Counter overlaps;
+  private final Probes.Counter rebegins;
+  private final Probes.Counter leaks;
+
+  /**
+   * The names reported for each kind of violation, keyed by the interned name so that a report does not build a key.
+   */
+  private final ConcurrentHashMap<NameImpl, Boolean> overlapped = new ConcurrentHashMap<NameImpl, Boolean>();
+  private final ConcurrentHashMap<NameImpl, Boolean> rebegun = new ConcurrentHashMap<NameImpl, Boolean>();
+  private final ConcurrentHashMap<NameImpl, Boolean> leaked = new ConcurrentHashMap<NameImpl, Boolean>();
+
+  Contract(Provider provider) {
+    final String policy = provider.environment.getString(provider.names.parse(POLICY), "repair");
+    if (policy.equals("count")) this.policy = COUNT;
+    else if (policy.equals("repair")) this.policy = REPAIR;
+    else if (policy.equals("throw")) this.policy = THROW;
+    else throw new IllegalStateException(POLICY + ": " + policy);
+
+    this.overlaps = provider.counter(provider.names.parse("probes.contract.overlaps"));
+    this.rebegins = provider.counter(provider.names.parse("probes.contract.rebegins"));
+    this.leaks = provider.counter(provider.names.parse("probes.contract.leaks"));
+  }
+
+  /**
+   * Reports the probes still open within the calling thread's context, ending them without recording their metering
+   * unless the policy is <tt>count</tt>. To be called when a pooled thread has completed a task, such as from
+   * <tt>ThreadPoolExecutor.afterExecute</tt>, or with the reference implementation not installed does nothing.
+   *
+   * @return The number of probes that were open
+   * @throws IllegalStateException if probes were open and the policy is <tt>throw</tt>, after they have been ended
+   */
+  public static int leaks() {
+    final Probes.Context context = Probes.context();
+    if (!(context instanceof ContextImpl)) return 0;
+
+    final ContextImpl ctx = (ContextImpl) context;
+    final ProbeImpl top = ctx.top;
+    if (top == null) return 0;
+
+    final Contract contract = ctx.provider.contract;
+    final int open = top.depth;
+    contract.leaks.inc(open);
+    report(contract.leaked, "leak", top);
+
+    if (contract.policy != COUNT) {
+      while (ctx.top != null) ctx.top.end(0);
+      if (contract.policy == THROW) throw new IllegalStateException("probes left open: " + open + ", top: " + top);
+    }
+    return open;
+  }
+
+  /**
+   * Applies the policy to a probe ended when not on the top of the stack returning once the end can proceed.
+   */
+  void overlap(ProbeImpl probe) {
+    overlaps.inc();
+    report(overlapped, "overlap", probe);
+
+    if (policy == THROW) throw new IllegalStateException("overlapping end of probe: " + probe + ", top: " + probe.context.top);
+    if (policy == REPAIR && contains(probe)) unwind(probe);
+    else if (policy == COUNT && contains(probe)) unlink(probe);
+  }
+
+  /**
+   * Applies the policy to a probe begun before being ended returning once the begin can proceed.
+   */
+  void rebegin(ProbeImpl probe) {
+    rebegins.inc();
+    report(rebegun, "rebegin", probe);
+
+    if (policy == THROW) throw new IllegalStateException("probe begun before being ended: " + probe);
+    if (policy == REPAIR) {
+      if (contains(probe)) {
+        unwind(probe);
+        probe.end();
+      } else {
+        probe.state = 0;
+      }
+    } else if (contains(probe)) {
+      discard(probe);
+    }
+  }
+
+  /**
+   * Returns <tt>true</tt> if the probe is on the stack, walking down from the top to the probe's depth.
+   */
+  private static boolean contains(ProbeImpl probe) {
+    ProbeImpl p = probe.context.top;
+    while (p != null && p.depth > probe.depth) p = p.parent;
+    return p == probe;
+  }
+
+  /**
+   * Removes the earlier firing of the probe from the stack, ending its interceptors without recording its metering,
+   * so that the probe begun again is never linked to itself.
+   */
+  private static void discard(ProbeImpl probe) {
+    unlink(probe);
+
+    final int s = probe.state;
+    probe.parent = null;
+    probe.node = null;
+    probe.state = 0;
+    if (s > 0) probe.layers.end(probe);
+  }
+
+  /**
+   * Removes the probe from the stack with the probes above it moving down into its place,
+   * so that an ended probe is never left on the stack.
+   */
+  private static void unlink(ProbeImpl probe) {
+    final ContextImpl ctx = probe.context;
+    if (ctx.top == probe) {
+      ctx.top = probe.parent;
+      return;
+    }
+
+    ProbeImpl p = ctx.top;
+    while (p.parent != probe) {
+      p.depth--;
+      p = p.parent;
+    }
+    p.depth--;
+    p.parent = probe.parent;
+  }
+
+  /**
+   * Ends the probes above the probe on the stack recording their metering up to now.
+   */
+  private static void unwind(ProbeImpl probe) {
+    final ContextImpl ctx = probe.context;
+    while (ctx.top != probe) ctx.top.end();
+  }
+
+  private static void report(ConcurrentHashMap<NameImpl, Boolean> reported, String kind, ProbeImpl probe) {
+    if (reported.putIfAbsent(probe.name, Boolean.TRUE) == null) {
+      LOGGER.log(Level.WARNING, "Probe contract violation (" + kind + ") by: " + probe.name + " on thread: " + probe.context.getName());
+    }
+  }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+/**
+ * The reference implementation of {@link Probes.Counter Counter}.<p>
+ * The counter value is a plain (thread confined) long field padded on both sides so that it occupies its own cache line,
+ * avoiding false sharing with neighbouring counters allocated by the same or other threads.
+ * The padding is declared in superclasses because the JVM is otherwise free to reorder the fields of a single class.
+ */
+final class CounterImpl extends CounterRhsPadding implements Probes.Counter {
+
+  final NameImpl name;
+
+  CounterImpl(NameImpl name) {
+    this.name = name;
+  }
+
+  public Probes.Name getName() {
+    return name;
+  }
+
+  public long getValue() {
+    return value;
+  }
+
+  public void inc() {
+    value++;
+  }
+
+  public void inc(long value) {
+    if (value < 0) throw new IllegalArgumentException("value: " + value);
+    this.value += value;
+  }
+
+}
+
+abstract class CounterLhsPadding {
+  protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+abstract class CounterValue extends CounterLhsPadding {
+  protected long value;
+}
+
+abstract class CounterRhsPadding extends CounterValue {
+  protected long p9, p10, p11, p12, p13, p14, p15;
+}
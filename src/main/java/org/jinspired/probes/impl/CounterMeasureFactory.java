@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.measure.ProbesMeasure;
+import org.jinspired.probes.measure.ProbesMeasureFactory;
+
+/**
+ * A {@link ProbesMeasureFactory} exposing a named thread or process wide {@link Probes.Counter Counter} as a meter measure.<p>
+ * The counters mapped are listed, comma separated, in the <tt>probes.counters</tt> and <tt>probes.global.counters</tt> environment values
+ * with each meter named after its counter.
+ */
+final class CounterMeasureFactory implements ProbesMeasureFactory {
+
+  private final NameImpl name;
+  private final GlobalCounterImpl global;
+
+  CounterMeasureFactory(NameImpl name) {
+    this.name = name;
+    this.global = null;
+  }
+
+  CounterMeasureFactory(GlobalCounterImpl global) {
+    this.name = global.name;
+    this.global = global;
+  }
+
+  public void init(Probes.Environment environment) {}
+
+  public ProbesMeasure create(Probes.Context context) {
+    return global != null ? global : new CounterMeasure((CounterImpl) context.counter(name));
+  }
+
+  private static final class CounterMeasure implements ProbesMeasure {
+
+    private final CounterImpl counter;
+
+    CounterMeasure(CounterImpl counter) {
+      this.counter = counter;
+    }
+
+    public long getValue() {
+      return counter.value;
+    }
+
+  }
+
+}
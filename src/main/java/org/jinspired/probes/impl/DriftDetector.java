@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.interceptor.ProbesInterceptor;
+import org.jinspired.probes.interceptor.ProbesInterceptorFactory;
+import org.jinspired.probes.strategy.ProbesStrategy;
+import org.jinspired.probes.strategy.ProbesStrategyFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An interceptor factory detecting a sustained shift in the delta of the first meter of each name, labeling the name
+ * <tt>regressed</tt> while the shift lasts so that its metering fidelity can be raised only while something is going wrong.<p>
+ * Each name holds an exponentially weighted moving average and variance of the delta along with a one sided CUSUM of the
+ * deviations above the average less a slack of a number of standard deviations. A deviation adds at most a quarter of the threshold beyond the slack,
+ * so a single outlier such as a pause does not amount to a shift, and the deviations taken into the average and variance are clipped. A shift is detected when the CUSUM exceeds
+ * the threshold number of standard deviations, labeling the name for the hold period which is extended on each further detection.
+ * The average keeps adapting, so a lasting shift becomes the new baseline and the label is removed on the first end after the hold.
+ * The state of a name is a few fields updated without locking by all threads ending it, so an estimate under contention.<p>
+ * The {@link Fidelity} strategy, configured with <tt>probes.strategies</tt> as <tt>org.jinspired.probes.impl.DriftDetector$Fidelity</tt>,
+ * votes <tt>YES</tt> for the firings of names labeled <tt>regressed</tt>, which records a histogram and captures the call tree
+ * beneath them even when details and call tree mode are not enabled.
+ * The following values are read from the environment:
+ * <ul>
+ * <li><tt>probes.drift.alpha</tt> - the weight of a delta in the average and variance, defaults to <tt>0.01</tt></li>
+ * <li><tt>probes.drift.slack</tt> - the standard deviations of a deviation ignored by the CUSUM, defaults to <tt>1.0</tt></li>
+ * <li><tt>probes.drift.threshold</tt> - the standard deviations of the CUSUM detecting a shift, defaults to <tt>8.0</tt></li>
+ * <li><tt>probes.drift.warmup</tt> - the firings of a name before shifts are detected, defaults to <tt>100</tt></li>
+ * <li><tt>probes.drift.hold</tt> - the seconds a name stays labeled after a detection, defaults to <tt>60</tt></li>
+ * </ul>
+ * Detections are counted by the <tt>probes.drift.regressions</tt> process wide counter.
+ */
+public final class DriftDetector implements ProbesInterceptorFactory {
+
+  static final String ALPHA = "probes.drift.alpha";
+  static final String SLACK = "probes.drift.slack";
+  static final String THRESHOLD = "probes.drift.threshold";
+  static final String WARMUP = "probes.drift.warmup";
+  static final String HOLD = "probes.drift.hold";
+
+  private static final Logger LOGGER = Logger.getLogger(DriftDetector.class.getName());
+
+  private double alpha;
+  private double slack;
+  private double threshold;
+  private long warmup;
+  private long hold;
+  private Probes.Counter regressions;
+
+  private volatile AtomicReferenceArray<Drift> drifts = new AtomicReferenceArray<Drift>(1024);
+
+  public void init(Probes.Environment environment) {
+    alpha = environment.getDouble(Probes.parse(ALPHA), 0.01D);
+    slack = environment.getDouble(Probes.parse(SLACK), 1.0D);
+    threshold = environment.getDouble(Probes.parse(THRESHOLD), 8.0D);
+    warmup = environment.getLong(Probes.parse(WARMUP), 100L);
+    hold = TimeUnit.SECONDS.toNanos(environment.getLong(Probes.parse(HOLD), 60L));
+    regressions = Probes.counter(Probes.parse("probes.drift.regressions"));
+
+    if (alpha <= 0.0D || alpha >= 1.0D) throw new IllegalStateException(ALPHA + ": " + alpha);
+    if (slack < 0.0D) throw new IllegalStateException(SLACK + ": " + slack);
+    if (threshold <= 0.0D) throw new IllegalStateException(THRESHOLD + ": " + threshold);
+    if (hold <= 0L) throw new IllegalStateException(HOLD + ": " + hold);
+  }
+
+  public ProbesInterceptor create(Probes.Context context) {
+    return new Interceptor();
+  }
+
+  private Drift drift(NameImpl name) {
+    final AtomicReferenceArray<Drift> ds = drifts;
+    final Drift drift = name.id < ds.length() ? ds.get(name.id) : null;
+    return drift != null ? drift : create(name);
+  }
+
+  private synchronized Drift create(NameImpl name) {
+    AtomicReferenceArray<Drift> ds = drifts;
+    if (name.id >= ds.length()) {
+      final AtomicReferenceArray<Drift> grown = new AtomicReferenceArray<Drift>(Math.max(ds.length() << 1, name.id + 1));
+      for (int i = 0; i < ds.length(); i++) grown.set(i, ds.get(i));
+      drifts = ds = grown;
+    }
+
+    Drift drift = ds.get(name.id);
+    if (drift == null) ds.set(name.id, drift = new Drift());
+    return drift;
+  }
+
+  /**
+   * Updates the state of the name with the delta, returning <tt>true</tt> if a shift is detected.
+   */
+  private boolean update(Drift d, long delta) {
+    final double x = delta;
+    final long n = d.count++;
+    if (n == 0L) {
+      d.mean = x;
+      return false;
+    }
+
+    final double diff = x - d.mean;
+    // a standard deviation of at least one unit so that a name with constant deltas is not flagged on the slightest change
+    final double sd = Math.max(Math.sqrt(d.variance), 1.0D);
+
+    boolean shifted = false;
+    if (n >= warmup) {
+      final double cusum = Math.max(0.0D, d.cusum + Math.min(diff, (slack + 0.25D * threshold) * sd) - slack * sd);
+      shifted = cusum > threshold * sd;
+      d.cusum = shifted ? 0.0D : cusum;
+    }
+
+    // the early deltas are weighted equally so the average is not anchored to the first
+    // once warmed up a deviation is clipped to three standard deviations so that outliers do not inflate the variance
+    final double weight = Math.max(alpha, 1.0D / (n + 1));
+    final double clipped = n >= warmup ? Math.max(-3.0D * sd, Math.min(diff, 3.0D * sd)) : diff;
+    final double increment = weight * clipped;
+    d.mean += increment;
+    d.variance = (1.0D - weight) * (d.variance + clipped * increment);
+
+    return shifted;
+  }
+
+  private void regressed(NameImpl name, Drift d, long now) {
+    d.until = now + hold;
+    if (name.contains(LabelImpl.REGRESSED) || !name.label(LabelImpl.REGRESSED)) return;
+
+    regressions.inc();
+    if (LOGGER.isLoggable(Level.INFO)) LOGGER.log(Level.INFO, "Regression detected for: " + name + " from an average of: " + (long) d.mean);
+  }
+
+  /**
+   * The moving average, variance and CUSUM of the deltas of a name along with when its label expires.
+   */
+  private static final class Drift {
+
+    long count;
+    double mean;
+    double variance;
+    double cusum;
+    volatile long until;
+
+  }
+
+  private final class Interceptor implements ProbesInterceptor {
+
+    public void begin(Probes.Probe probe) {}
+
+    public void end(Probes.Probe probe) {
+      final ProbeImpl p = (ProbeImpl) probe;
+      if (p.state <= 0 || p.readings.length == 0) return;
+
+      final Drift d = drift(p.name);
+      final boolean shifted = update(d, p.readings[ProbeImpl.HIGH] - p.readings[ProbeImpl.LOW]);
+
+      if (shifted) {
+        regressed(p.name, d, System.nanoTime());
+      } else if (d.until != 0L && System.nanoTime() - d.until > 0L) {
+        d.until = 0L;
+        p.name.unlabel(LabelImpl.REGRESSED);
+      }
+    }
+
+  }
+
+  /**
+   * A strategy factory voting <tt>YES</tt> for the firings of names labeled <tt>regressed</tt>, raising their metering fidelity,
+   * and abstaining otherwise.
+   */
+  public static final class Fidelity implements ProbesStrategyFactory {
+
+    private static final ProbesStrategy STRATEGY = new ProbesStrategy() {
+      public int vote(Probes.Probe probe) {
+        return ((ProbeImpl) probe).name.contains(LabelImpl.REGRESSED) ? 1 : 0;
+      }
+    };
+
+    public void init(Probes.Environment environment) {}
+
+    public ProbesStrategy create(Probes.Context context) {
+      return STRATEGY;
+    }
+
+  }
+
+}
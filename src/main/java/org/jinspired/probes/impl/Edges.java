@@ -0,0 +1,74 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+/**
+ * The caller to callee stats of a context held in an open addressed table keyed by the pair of name ids.
+ */
+final class Edges {
+
+  private long[] keys = new long[64];
+  private Stats[] stats = new Stats[64];
+  private int size;
+
+  /**
+   * Returns the stats of the callee when called directly by the caller creating them if not already present.
+   */
+  Stats get(NameImpl caller, NameImpl callee, int meters) {
+    final long key = (long) caller.id << 32 | callee.id;
+
+    final int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (true) {
+      final Stats s = stats[i];
+      if (s == null) break;
+      if (keys[i] == key) return s;
+      i = (i + 1) & mask;
+    }
+
+    final Stats s = new Stats(callee, caller, meters);
+    keys[i] = key;
+    stats[i] = s;
+    if (++size > keys.length >> 1) rehash();
+    return s;
+  }
+
+  private void rehash() {
+    final long[] oldKeys = keys;
+    final Stats[] oldStats = stats;
+
+    keys = new long[oldKeys.length << 1];
+    stats = new Stats[oldKeys.length << 1];
+
+    final int mask = keys.length - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldStats[j] == null) continue;
+
+      int i = hash(oldKeys[j]) & mask;
+      while (stats[i] != null) i = (i + 1) & mask;
+      keys[i] = oldKeys[j];
+      stats[i] = oldStats[j];
+    }
+  }
+
+  private static int hash(long key) {
+    final long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32);
+  }
+
+}
@@ -0,0 +1,541 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The embedded HTTP endpoint serving the live metering of the {@link Table} as JSON lines, one object per name.<p>
+ * It is enabled with the <tt>probes.http.port</tt> value and binds to the <tt>probes.http.address</tt> value, defaulting to the loopback address.
+ * The following queries are supported with an optional <tt>meter</tt> parameter, the first meter by default:
+ * <ul>
+ * <li><tt>/probes/top?n=10&amp;by=total&amp;prefix=com.acme</tt> the top names by <tt>count</tt>, <tt>total</tt>, <tt>inherent</tt> or <tt>p99</tt>,
+ * with <tt>window=60</tt> ordering by the values within a rolling window rather than the cumulative values</li>
+ * <li><tt>/probes/names?prefix=com.acme</tt> all names starting with the prefix</li>
+ * <li><tt>/probes/callers?name=com.acme.Dao.find</tt> the direct metered callers of a name</li>
+ * <li><tt>/probes/callees?name=com.acme.Dao.find</tt> the metered names called directly by a name</li>
+ * <li><tt>/probes/tree?path=com.acme.Web.get/com.acme.Dao.find&amp;depth=3</tt> the merged call tree beneath a path in call tree mode</li>
+ * <li><tt>/probes/flamegraph?values=inherent</tt> the merged call tree as {@link CollapsedStacks} of <tt>inherent</tt> or <tt>total</tt> values</li>
+ * <li><tt>/probes/labels?label=hotspot</tt> all names associated with the label read from the {@link LabelIndex}</li>
+ * <li><tt>/probes/exemplars?name=com.acme.Dao.find</tt> the tail latency {@link Exemplars} of a name when enabled</li>
+ * </ul>
+ * Queries read the rows of the table as of the last snapshot and write each as it is matched, so that only the top-N selection
+ * is held in memory. The <tt>p99</tt> is taken from the histogram of the first meter. When {@link Windows} are enabled each name
+ * also has the values of the meter within each rolling window, keyed by the window length in seconds.
+ */
+final class Endpoint {
+
+  static final String PORT = "probes.http.port";
+  static final String ADDRESS = "probes.http.address";
+
+  private static final int MAX_TOP = 1000;
+
+  private final Provider provider;
+  private final Table table;
+  private final PathTable paths;
+
+  private Endpoint(Provider provider, Table table, PathTable paths) {
+    this.provider = provider;
+    this.table = table;
+    this.paths = paths;
+  }
+
+  static boolean enabled(EnvironmentImpl env, Names names) {
+    return env.getString(names.parse(PORT)) != null;
+  }
+
+  static void start(Provider provider, Table table, PathTable paths) {
+    final EnvironmentImpl env = provider.environment;
+    final Names names = provider.names;
+
+    final int port = env.getInt(names.parse(PORT), 0);
+    final String address = env.getString(names.parse(ADDRESS), "127.0.0.1");
+
+    final HttpServer server;
+    try {
+      server = HttpServer.create(new InetSocketAddress(address, port), 0);
+    } catch (IOException e) {
+      throw new IllegalStateException("unable to bind endpoint: " + address + ":" + port, e);
+    }
+
+    final Endpoint endpoint = new Endpoint(provider, table, paths);
+    server.createContext("/probes/top", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        endpoint.top(exchange);
+      }
+    });
+    server.createContext("/probes/names", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        endpoint.names(exchange);
+      }
+    });
+    server.createContext("/probes/callers", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        endpoint.links(exchange, true);
+      }
+    });
+    server.createContext("/probes/callees", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        endpoint.links(exchange, false);
+      }
+    });
+    server.createContext("/probes/tree", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        endpoint.tree(exchange);
+      }
+    });
+    server.createContext("/probes/flamegraph", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        endpoint.flamegraph(exchange);
+      }
+    });
+
+    server.createContext("/probes/labels", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        endpoint.labels(exchange);
+      }
+    });
+    server.createContext("/probes/exemplars", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        endpoint.exemplars(exchange);
+      }
+    });
+
+    // the dispatcher thread inherits the daemon status of the thread starting the server
+    final Thread starter = new Thread("probes-endpoint") {
+      @Override
+      public void run() {
+        server.start();
+      }
+    };
+    starter.setDaemon(true);
+    starter.start();
+    try {
+      starter.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void top(HttpExchange exchange) throws IOException {
+    final Map<String, String> params = params(exchange);
+
+    final int meter = meter(exchange, params);
+    if (meter < 0) return;
+
+    final NameImpl prefix = prefix(exchange, params);
+    if (prefix == null && params.containsKey("prefix")) return;
+
+    final String by = params.containsKey("by") ? params.get("by") : "total";
+    final int field = by.equals("count") ? Stats.COUNT : by.equals("total") ? Stats.TOTAL : by.equals("inherent") ? Stats.INHERENT : by.equals("p99") ? -1 : -2;
+    if (field == -2 || (field == -1 && meter != 0)) {
+      error(exchange, 400, "unsupported ordering: " + by);
+      return;
+    }
+
+    final Windows windows = provider.windows;
+    final long time = System.currentTimeMillis();
+    int window = -1;
+    if (params.containsKey("window")) {
+      try {
+        window = windows != null ? windows.index(Long.parseLong(params.get("window"))) : -1;
+      } catch (NumberFormatException e) {
+        window = -1;
+      }
+      if (window < 0 || field < 0) {
+        error(exchange, 400, "unsupported window: " + params.get("window"));
+        return;
+      }
+    }
+
+    final int n;
+    try {
+      n = Math.min(MAX_TOP, Integer.parseInt(params.containsKey("n") ? params.get("n") : "10"));
+    } catch (NumberFormatException e) {
+      error(exchange, 400, "invalid n: " + params.get("n"));
+      return;
+    }
+
+    // a min heap of the top rows seen so far ordered by key
+    final Table.Row[] heap = new Table.Row[Math.max(n, 0)];
+    final long[] keys = new long[heap.length];
+    int size = 0;
+
+    for (int id = 0, count = table.size(); id < count && heap.length > 0; id++) {
+      final Table.Row row = table.get(id);
+      if (row == null || row.values == null || (prefix != null && !row.name.startsWith(prefix))) continue;
+
+      final long key = field < 0 ? Histogram.percentile(row.histogram, 0.99D)
+                       : Table.value(window < 0 ? row.values : windows.values(id, window, time), meter, field);
+      if (size < heap.length) {
+        heap[size] = row;
+        keys[size] = key;
+        up(heap, keys, size++);
+      } else if (key > keys[0]) {
+        heap[0] = row;
+        keys[0] = key;
+        down(heap, keys, size);
+      }
+    }
+
+    final Writer out = open(exchange);
+    try {
+      // drain the heap from the smallest writing the rows in reverse
+      final Table.Row[] sorted = new Table.Row[size];
+      for (int i = size - 1; i >= 0; i--) {
+        sorted[i] = heap[0];
+        heap[0] = heap[i];
+        keys[0] = keys[i];
+        down(heap, keys, i);
+      }
+      for (Table.Row row : sorted) write(out, row.name, row.values, meter, row.histogram, windows, time);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void up(Table.Row[] heap, long[] keys, int i) {
+    while (i > 0) {
+      final int parent = (i - 1) >> 1;
+      if (keys[parent] <= keys[i]) return;
+      swap(heap, keys, i, parent);
+      i = parent;
+    }
+  }
+
+  private static void down(Table.Row[] heap, long[] keys, int size) {
+    int i = 0;
+    while (true) {
+      final int l = (i << 1) + 1;
+      if (l >= size) return;
+      final int c = l + 1 < size && keys[l + 1] < keys[l] ? l + 1 : l;
+      if (keys[i] <= keys[c]) return;
+      swap(heap, keys, i, c);
+      i = c;
+    }
+  }
+
+  private static void swap(Table.Row[] heap, long[] keys, int i, int j) {
+    final Table.Row r = heap[i];
+    heap[i] = heap[j];
+    heap[j] = r;
+    final long k = keys[i];
+    keys[i] = keys[j];
+    keys[j] = k;
+  }
+
+  private void names(HttpExchange exchange) throws IOException {
+    final Map<String, String> params = params(exchange);
+
+    final int meter = meter(exchange, params);
+    if (meter < 0) return;
+
+    final NameImpl prefix = prefix(exchange, params);
+    if (prefix == null && params.containsKey("prefix")) return;
+
+    final Windows windows = provider.windows;
+    final long time = System.currentTimeMillis();
+
+    final Writer out = open(exchange);
+    try {
+      for (int id = 0, count = table.size(); id < count; id++) {
+        final Table.Row row = table.get(id);
+        if (row == null || row.values == null || (prefix != null && !row.name.startsWith(prefix))) continue;
+        write(out, row.name, row.values, meter, row.histogram, windows, time);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void labels(HttpExchange exchange) throws IOException {
+    final Map<String, String> params = params(exchange);
+
+    final int meter = meter(exchange, params);
+    if (meter < 0) return;
+
+    final String value = params.get("label");
+    final LabelImpl label = value != null ? LabelImpl.get(value) : null;
+    if (label == null) {
+      error(exchange, 404, "unknown label: " + value);
+      return;
+    }
+
+    final Windows windows = provider.windows;
+    final long time = System.currentTimeMillis();
+
+    final Writer out = open(exchange);
+    try {
+      for (NameImpl name : provider.names.labeled(label)) {
+        final Table.Row row = table.get(name.id);
+        write(out, name, row != null ? row.values : null, meter, row != null ? row.histogram : null, windows, time);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void exemplars(HttpExchange exchange) throws IOException {
+    final Exemplars exemplars = provider.exemplars;
+    if (exemplars == null) {
+      error(exchange, 404, "exemplars not enabled");
+      return;
+    }
+
+    final Map<String, String> params = params(exchange);
+    final String value = params.get("name");
+    final NameImpl name = value != null ? provider.names.find(value) : null;
+    if (name == null) {
+      error(exchange, 404, "unknown name: " + value);
+      return;
+    }
+
+    final Writer out = open(exchange);
+    try {
+      exemplars.write(out, name);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void links(HttpExchange exchange, boolean callers) throws IOException {
+    final Map<String, String> params = params(exchange);
+
+    final int meter = meter(exchange, params);
+    if (meter < 0) return;
+
+    final String value = params.get("name");
+    final NameImpl name = value != null ? provider.names.find(value) : null;
+    final Table.Row row = name != null ? table.get(name.id) : null;
+    if (row == null) {
+      error(exchange, 404, "unknown name: " + value);
+      return;
+    }
+
+    final Writer out = open(exchange);
+    try {
+      for (Table.Link link : callers ? row.callers : row.callees) write(out, link.name, link.values, meter, null, null, 0L);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void tree(HttpExchange exchange) throws IOException {
+    if (paths == null) {
+      error(exchange, 404, "call tree mode not enabled");
+      return;
+    }
+
+    final Map<String, String> params = params(exchange);
+
+    final int meter = meter(exchange, params);
+    if (meter < 0) return;
+
+    PathTable.Node start = paths.root;
+    final String path = params.get("path");
+    if (path != null) {
+      for (String part : path.split("/")) {
+        final NameImpl name = provider.names.find(part);
+        start = name != null ? start.child(name) : null;
+        if (start == null) {
+          error(exchange, 404, "unknown path: " + path);
+          return;
+        }
+      }
+    }
+
+    final int depth;
+    try {
+      depth = Integer.parseInt(params.containsKey("depth") ? params.get("depth") : "2147483647");
+    } catch (NumberFormatException e) {
+      error(exchange, 400, "invalid depth: " + params.get("depth"));
+      return;
+    }
+
+    final Writer out = open(exchange);
+    try {
+      // a depth first walk with the stack holding the nodes still to be written along with their relative depth
+      final List<PathTable.Node> nodes = new ArrayList<PathTable.Node>();
+      final List<Integer> depths = new ArrayList<Integer>();
+      push(nodes, depths, start.children, 1);
+
+      while (!nodes.isEmpty()) {
+        final int last = nodes.size() - 1;
+        final PathTable.Node node = nodes.remove(last);
+        final int d = depths.remove(last);
+
+        write(out, node, meter);
+
+        if (d < depth) push(nodes, depths, node.children, d + 1);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private void flamegraph(HttpExchange exchange) throws IOException {
+    if (paths == null) {
+      error(exchange, 404, "call tree mode not enabled");
+      return;
+    }
+
+    final Map<String, String> params = params(exchange);
+
+    final int meter = meter(exchange, params);
+    if (meter < 0) return;
+
+    final String values = params.containsKey("values") ? params.get("values") : "inherent";
+    if (!values.equals("inherent") && !values.equals("total")) {
+      error(exchange, 400, "unsupported values: " + values);
+      return;
+    }
+
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(200, 0);
+    final Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"));
+    try {
+      CollapsedStacks.write(out, paths.root, meter, CollapsedStacks.inherent(values));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void push(List<PathTable.Node> nodes, List<Integer> depths, PathTable.Node[] children, int depth) {
+    // pushed in reverse so that children are written in the order first seen
+    for (int i = children.length - 1; i >= 0; i--) {
+      nodes.add(children[i]);
+      depths.add(depth);
+    }
+  }
+
+  private static void write(Writer out, PathTable.Node node, int meter) throws IOException {
+    final long[] values = node.values;
+
+    final List<NameImpl> path = new ArrayList<NameImpl>();
+    for (PathTable.Node n = node; n.parent != null; n = n.parent) path.add(n.name);
+
+    out.write("{\"path\":[");
+    for (int i = path.size() - 1; i >= 0; i--) {
+      Json.string(out, path.get(i).toString());
+      if (i > 0) out.write(',');
+    }
+    out.write("],\"count\":");
+    out.write(Long.toString(Table.value(values, meter, Stats.COUNT)));
+    out.write(",\"total\":");
+    out.write(Long.toString(Table.value(values, meter, Stats.TOTAL)));
+    out.write(",\"inherent\":");
+    out.write(Long.toString(Table.value(values, meter, Stats.INHERENT)));
+    out.write("}\n");
+  }
+
+  private int meter(HttpExchange exchange, Map<String, String> params) throws IOException {
+    final String value = params.get("meter");
+    if (value == null) return 0;
+
+    final NameImpl name = provider.names.find(value);
+    final MeterImpl meter = name != null ? (MeterImpl) provider.meter(name) : null;
+    if (meter == null) {
+      error(exchange, 404, "unknown meter: " + value);
+      return -1;
+    }
+    return meter.index;
+  }
+
+  private NameImpl prefix(HttpExchange exchange, Map<String, String> params) throws IOException {
+    final String value = params.get("prefix");
+    if (value == null) return null;
+
+    final NameImpl name = provider.names.find(value);
+    if (name == null) error(exchange, 404, "unknown prefix: " + value);
+    return name;
+  }
+
+  private static Writer open(HttpExchange exchange) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+    // a zero length streams the response in chunks
+    exchange.sendResponseHeaders(200, 0);
+    return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), "UTF-8"));
+  }
+
+  private static void error(HttpExchange exchange, int status, String message) throws IOException {
+    final byte[] body = (message + "\n").getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
+    exchange.close();
+  }
+
+  private static void write(Writer out, NameImpl name, long[] values, int meter, long[] histogram, Windows windows, long time) throws IOException {
+    out.write("{\"name\":");
+    Json.string(out, name.toString());
+    out.write(",\"count\":");
+    out.write(Long.toString(Table.value(values, meter, Stats.COUNT)));
+    out.write(",\"total\":");
+    out.write(Long.toString(Table.value(values, meter, Stats.TOTAL)));
+    out.write(",\"inherent\":");
+    out.write(Long.toString(Table.value(values, meter, Stats.INHERENT)));
+    if (histogram != null && meter == 0) {
+      out.write(",\"p99\":");
+      out.write(Long.toString(Histogram.percentile(histogram, 0.99D)));
+    }
+    if (windows != null) {
+      out.write(",\"windows\":{");
+      for (int i = 0; i < windows.lengths.length; i++) {
+        final long[] w = windows.values(name.id, i, time);
+        if (i > 0) out.write(',');
+        out.write("\"" + windows.lengths[i] + "\":{\"count\":");
+        out.write(Long.toString(Table.value(w, meter, Stats.COUNT)));
+        out.write(",\"total\":");
+        out.write(Long.toString(Table.value(w, meter, Stats.TOTAL)));
+        out.write(",\"inherent\":");
+        out.write(Long.toString(Table.value(w, meter, Stats.INHERENT)));
+        out.write('}');
+      }
+      out.write('}');
+    }
+    out.write("}\n");
+  }
+
+  private static Map<String, String> params(HttpExchange exchange) throws UnsupportedEncodingException {
+    final Map<String, String> params = new HashMap<String, String>();
+
+    final String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) return params;
+
+    for (String param : query.split("&")) {
+      final int eq = param.indexOf('=');
+      if (eq > 0) params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+    }
+    return params;
+  }
+
+}
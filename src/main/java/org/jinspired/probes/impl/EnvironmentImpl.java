@@ -0,0 +1,197 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The reference implementation of {@link Probes.Environment Environment}.<p>
+ * A thread context environment falls back to the global (provider) environment for values not set within its own scope.
+ * Values stored as strings, such as those loaded from configuration, are converted on retrieval by the typed accessors.
+ */
+final class EnvironmentImpl implements Probes.Environment {
+
+  private static final Object NULL = new Object();
+
+  private final Names names;
+  private final EnvironmentImpl parent;
+  private final ConcurrentHashMap<Probes.Name, Object> values = new ConcurrentHashMap<Probes.Name, Object>();
+
+  EnvironmentImpl(Names names, EnvironmentImpl parent) {
+    this.names = names;
+    this.parent = parent;
+  }
+
+  private Object get(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+
+    final Object value = values.get(name);
+    if (value == NULL) return null;
+    if (value == null && parent != null) return parent.get(name);
+    return value;
+  }
+
+  private void set(Probes.Name name, Object value) {
+    if (name == null) throw new NullPointerException("name");
+    values.put(name, value == null ? NULL : value);
+  }
+
+  public boolean contains(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+
+    final Object value = values.get(name);
+    if (value != null) return value != NULL;
+
+    for (Probes.Name key : values.keySet()) {
+      if (key.startsWith(name) && values.get(key) != NULL) return true;
+    }
+
+    return parent != null && parent.contains(name);
+  }
+
+  public void remove(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+
+    final Iterator<Probes.Name> it = values.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(name)) it.remove();
+    }
+  }
+
+  public void setNull(Probes.Name name) {
+    set(name, null);
+  }
+
+  public boolean isNull(Probes.Name name) {
+    return get(name) == null;
+  }
+
+  public long getLong(Probes.Name name) {
+    return getLong(name, 0L);
+  }
+
+  public long getLong(Probes.Name name, long defValue) {
+    final Object value = get(name);
+    if (value instanceof Number) return ((Number) value).longValue();
+    if (value instanceof String) {
+      try {
+        return Long.parseLong(((String) value).trim());
+      } catch (NumberFormatException e) {
+        return defValue;
+      }
+    }
+    return defValue;
+  }
+
+  public void setLong(Probes.Name name, long newValue) {
+    set(name, Long.valueOf(newValue));
+  }
+
+  public boolean getBoolean(Probes.Name name) {
+    return getBoolean(name, false);
+  }
+
+  public boolean getBoolean(Probes.Name name, boolean defValue) {
+    final Object value = get(name);
+    if (value instanceof Boolean) return (Boolean) value;
+    if (value instanceof String) {
+      final String s = ((String) value).trim();
+      if ("true".equalsIgnoreCase(s)) return true;
+      if ("false".equalsIgnoreCase(s)) return false;
+    }
+    return defValue;
+  }
+
+  public void setBoolean(Probes.Name name, boolean newValue) {
+    set(name, Boolean.valueOf(newValue));
+  }
+
+  public int getInt(Probes.Name name) {
+    return getInt(name, 0);
+  }
+
+  public int getInt(Probes.Name name, int defValue) {
+    final Object value = get(name);
+    if (value instanceof Number) return ((Number) value).intValue();
+    if (value instanceof String) {
+      try {
+        return Integer.parseInt(((String) value).trim());
+      } catch (NumberFormatException e) {
+        return defValue;
+      }
+    }
+    return defValue;
+  }
+
+  public void setInt(Probes.Name name, int newValue) {
+    set(name, Integer.valueOf(newValue));
+  }
+
+  public double getDouble(Probes.Name name) {
+    return getDouble(name, 0D);
+  }
+
+  public double getDouble(Probes.Name name, double defValue) {
+    final Object value = get(name);
+    if (value instanceof Number) return ((Number) value).doubleValue();
+    if (value instanceof String) {
+      try {
+        return Double.parseDouble(((String) value).trim());
+      } catch (NumberFormatException e) {
+        return defValue;
+      }
+    }
+    return defValue;
+  }
+
+  public void setDouble(Probes.Name name, double newValue) {
+    set(name, Double.valueOf(newValue));
+  }
+
+  public String getString(Probes.Name name) {
+    return getString(name, null);
+  }
+
+  public String getString(Probes.Name name, String defValue) {
+    final Object value = get(name);
+    return value != null ? value.toString() : defValue;
+  }
+
+  public void setString(Probes.Name name, String newValue) {
+    set(name, newValue);
+  }
+
+  public Probes.Name getName(Probes.Name name) {
+    return getName(name, null);
+  }
+
+  public Probes.Name getName(Probes.Name name, Probes.Name defValue) {
+    final Object value = get(name);
+    if (value instanceof Probes.Name) return (Probes.Name) value;
+    if (value instanceof String) return names.parse((String) value);
+    return defValue;
+  }
+
+  public void setName(Probes.Name name, Probes.Name newValue) {
+    set(name, newValue);
+  }
+
+}
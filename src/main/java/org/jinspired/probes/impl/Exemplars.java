@@ -0,0 +1,308 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The exemplars of the firings of each name whose delta of the first meter is within the top percentile of the name,
+ * so that a bad percentile can be traced to the requests behind it without logging every request.<p>
+ * Each name metered has a histogram of its deltas with a bucket for each power of two, grown to the highest bucket counted
+ * so that it stays small at a large number of names, from which the percentile is recomputed every 1024 firings, interpolated within
+ * its bucket, with the counts halved once large so that it follows the recent deltas. A firing above the percentile is
+ * offered to the reservoir of the name, a fixed number of slots allocated with the name holding the time, the context,
+ * the deltas of each meter and the preselected environment values of the context, such as a request id or tenant.
+ * The slot replaced is chosen by reservoir sampling over the offers, with the number of offers also halved as the histogram is,
+ * so that the reservoir favours recent firings. A slot is claimed by moving its sequence to odd with a compare and swap and
+ * released by moving it to even, an offer finding the slot claimed being dropped, so writers never block and readers retry
+ * rather than seeing a torn exemplar. The histogram counts are updated without locking by all threads firing the name,
+ * so an estimate under contention.<p>
+ * Exemplars are enabled with <tt>probes.exemplars.size</tt>, the number of slots of each name,
+ * with <tt>probes.exemplars.keys</tt> the comma separated names of the environment values captured
+ * and <tt>probes.exemplars.percentile</tt> the percentile offered, defaulting to <tt>0.99</tt>.
+ * They are served by the {@link Endpoint}.
+ */
+final class Exemplars {
+
+  static final String SIZE = "probes.exemplars.size";
+  static final String KEYS = "probes.exemplars.keys";
+  static final String PERCENTILE = "probes.exemplars.percentile";
+
+  private static final int RECOMPUTE = 1024;
+  private static final int DECAY = 1 << 16;
+  private static final int MAX_METERS = 64;
+
+  private final Provider provider;
+  private final int size;
+  final NameImpl[] keys;
+  private final double percentile;
+
+  private volatile AtomicReferenceArray<Reservoir> reservoirs = new AtomicReferenceArray<Reservoir>(1024);
+
+  private Exemplars(Provider provider, int size, NameImpl[] keys, double percentile) {
+    this.provider = provider;
+    this.size = size;
+    this.keys = keys;
+    this.percentile = percentile;
+  }
+
+  /**
+   * Returns the exemplars configured in the provider environment, or <tt>null</tt> if not enabled.
+   */
+  static Exemplars create(Provider provider) {
+    final EnvironmentImpl env = provider.environment;
+    final Names names = provider.names;
+
+    final int size = env.getInt(names.parse(SIZE), 0);
+    if (size < 0) throw new IllegalStateException(SIZE + ": " + size);
+    if (size == 0) return null;
+
+    final double percentile = env.getDouble(names.parse(PERCENTILE), 0.99D);
+    if (percentile <= 0.0D || percentile >= 1.0D) throw new IllegalStateException(PERCENTILE + ": " + percentile);
+
+    final List<String> values = Extensions.list(env.getString(names.parse(KEYS)));
+    final NameImpl[] keys = new NameImpl[values.size()];
+    for (int i = 0; i < keys.length; i++) keys[i] = names.parse(values.get(i));
+
+    return new Exemplars(provider, size, keys, percentile);
+  }
+
+  /**
+   * Counts the delta of the first meter of an ended metered firing, offering the firing to the reservoir of its name
+   * if the delta is within the top percentile.
+   */
+  void record(ContextImpl context, ProbeImpl probe, int count) {
+    final long[] r = probe.readings;
+    if (r.length == 0) return;
+
+    final Reservoir reservoir = reservoir(probe.name);
+    final long delta = (r[ProbeImpl.HIGH] - r[ProbeImpl.LOW]) / count;
+    final int index = delta > 0L ? 64 - Long.numberOfLeadingZeros(delta) : 0;
+    int[] c = reservoir.counts;
+    if (index >= c.length) c = reservoir.grow(index);
+    c[index]++;
+    if ((++reservoir.firings & (RECOMPUTE - 1)) == 0) reservoir.recompute(percentile);
+
+    if (delta > reservoir.threshold) reservoir.offer(context, probe, count);
+  }
+
+  /**
+   * Writes the exemplars of the name as JSON lines.
+   */
+  void write(Writer out, NameImpl name) throws IOException {
+    final AtomicReferenceArray<Reservoir> rs = reservoirs;
+    final Reservoir reservoir = name.id < rs.length() ? rs.get(name.id) : null;
+    if (reservoir != null) reservoir.write(out);
+  }
+
+  private Reservoir reservoir(NameImpl name) {
+    final AtomicReferenceArray<Reservoir> rs = reservoirs;
+    final Reservoir reservoir = name.id < rs.length() ? rs.get(name.id) : null;
+    return reservoir != null ? reservoir : create(name);
+  }
+
+  private synchronized Reservoir create(NameImpl name) {
+    AtomicReferenceArray<Reservoir> rs = reservoirs;
+    if (name.id >= rs.length()) {
+      final AtomicReferenceArray<Reservoir> grown = new AtomicReferenceArray<Reservoir>(Math.max(rs.length() << 1, name.id + 1));
+      for (int i = 0; i < rs.length(); i++) grown.set(i, rs.get(i));
+      reservoirs = rs = grown;
+    }
+
+    Reservoir reservoir = rs.get(name.id);
+    if (reservoir == null) rs.set(name.id, reservoir = new Reservoir(name, Math.min(provider.meterCount(), MAX_METERS)));
+    return reservoir;
+  }
+
+  /**
+   * The histogram, percentile and exemplar slots of a name, with the fields of the slots held in arrays indexed by slot.
+   */
+  private final class Reservoir {
+
+    final NameImpl name;
+    final int meters;
+
+    /**
+     * The counts of the deltas of zero and of each power of two, indexed by the number of significant bits of the delta.
+     */
+    volatile int[] counts = new int[0];
+    int firings;
+    long offers;
+
+    /**
+     * The delta above which a firing is offered, none until the histogram has been counted for the first time.
+     */
+    volatile long threshold = Long.MAX_VALUE;
+
+    final AtomicLongArray seqs;
+    final long[] times;
+    final int[] firingCounts;
+    final String[] contexts;
+    final long[] masks;
+    final long[] values;
+    final String[] environment;
+
+    Reservoir(NameImpl name, int meters) {
+      this.name = name;
+      this.meters = meters;
+      this.seqs = new AtomicLongArray(size);
+      this.times = new long[size];
+      this.firingCounts = new int[size];
+      this.contexts = new String[size];
+      this.masks = new long[size];
+      this.values = new long[size * meters];
+      this.environment = new String[size * keys.length];
+    }
+
+    /**
+     * Returns the counts grown to hold the bucket, counts of other threads racing with the copy being lost.
+     */
+    synchronized int[] grow(int index) {
+      final int[] c = counts;
+      if (index < c.length) return c;
+
+      final int[] grown = new int[index + 1];
+      System.arraycopy(c, 0, grown, 0, c.length);
+      counts = grown;
+      return grown;
+    }
+
+    void recompute(double percentile) {
+      final int[] c = counts;
+
+      long total = 0L;
+      for (int i = 0; i < c.length; i++) total += c[i];
+      if (total == 0L) return;
+
+      final long rank = Math.max(1L, (long) Math.ceil(percentile * total));
+      long seen = 0L;
+      for (int i = 0; i < c.length; i++) {
+        if (seen + c[i] >= rank) {
+          // the bucket holds the deltas from the power of two up to the next, assumed evenly spread within it
+          final long low = i > 0 ? 1L << (i - 1) : 0L;
+          final long high = i > 0 ? (1L << i) - 1L : 0L;
+          threshold = low + (long) ((high - low) * ((double) (rank - seen) / c[i]));
+          break;
+        }
+        seen += c[i];
+      }
+
+      if (total >= DECAY) {
+        for (int i = 0; i < c.length; i++) c[i] >>= 1;
+        offers >>= 1;
+      }
+    }
+
+    void offer(ContextImpl context, ProbeImpl probe, int count) {
+      final long k = ++offers;
+      final int slot = k <= size ? (int) (k - 1) : (int) ((mix(k) >>> 1) % k);
+      if (slot >= size) return;
+
+      final long seq = seqs.get(slot);
+      if ((seq & 1L) != 0L || !seqs.compareAndSet(slot, seq, seq + 1L)) return;
+
+      times[slot] = System.currentTimeMillis();
+      firingCounts[slot] = count;
+      contexts[slot] = context.getName();
+
+      long mask = 0L;
+      final MeterImpl[] ms = probe.layers.meters;
+      final long[] r = probe.readings;
+      for (int i = 0, o = 0; i < ms.length; i++, o += ProbeImpl.FIELDS) {
+        final int index = ms[i].index;
+        if (index >= meters) continue;
+        values[slot * meters + index] = r[o + ProbeImpl.HIGH] - r[o + ProbeImpl.LOW];
+        mask |= 1L << index;
+      }
+      masks[slot] = mask;
+
+      for (int j = 0; j < keys.length; j++) environment[slot * keys.length + j] = context.environment.getString(keys[j]);
+
+      seqs.set(slot, seq + 2L);
+    }
+
+    void write(Writer out) throws IOException {
+      final long[] v = new long[meters];
+      final String[] env = new String[keys.length];
+
+      for (int slot = 0; slot < size; slot++) {
+        long time;
+        int count;
+        String context;
+        long mask;
+        while (true) {
+          final long seq = seqs.get(slot);
+          if ((seq & 1L) == 0L) {
+            time = times[slot];
+            count = firingCounts[slot];
+            context = contexts[slot];
+            mask = masks[slot];
+            System.arraycopy(values, slot * meters, v, 0, meters);
+            System.arraycopy(environment, slot * keys.length, env, 0, keys.length);
+            if (seqs.get(slot) == seq) break;
+          }
+          Thread.yield();
+        }
+        if (context == null) continue;
+
+        out.write("{\"name\":");
+        Json.string(out, name.toString());
+        out.write(",\"time\":" + time + ",\"context\":");
+        Json.string(out, context);
+        out.write(",\"count\":" + count + ",\"values\":{");
+        boolean first = true;
+        for (int i = 0; i < meters; i++) {
+          if ((mask & (1L << i)) == 0L) continue;
+          if (!first) out.write(',');
+          first = false;
+          Json.string(out, provider.meterAt(i).name.toString());
+          out.write(":" + v[i]);
+        }
+        out.write("},\"environment\":{");
+        first = true;
+        for (int j = 0; j < keys.length; j++) {
+          if (env[j] == null) continue;
+          if (!first) out.write(',');
+          first = false;
+          Json.string(out, keys[j].toString());
+          out.write(':');
+          Json.string(out, env[j]);
+        }
+        out.write("}}\n");
+      }
+    }
+
+  }
+
+  /**
+   * The 64 bit finalizer of MurmurHash3 spreading the offer number into the slot chosen.
+   */
+  private static long mix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.interceptor.ProbesInterceptorFactory;
+import org.jinspired.probes.measure.ProbesMeasureFactory;
+import org.jinspired.probes.strategy.ProbesStrategyFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the provider runtime stack holding the meters and extension factories enabled.<p>
+ * The initial stack is loaded from the provider's global environment and then changed at runtime by publishing a modified copy,
+ * see {@link ProviderStack}.<p>
+ * The following environment values are read, each a comma separated list.
+ * <ul>
+ * <li><tt>probes.meters</tt> - the names of the meters read by a probe, defaults to <tt>clock.time</tt>.
+ * Meters other than the built-in <tt>clock.time</tt>, <tt>clock.tick</tt> and <tt>cpu.time</tt> require a
+ * <tt>probes.meter.&lt;name&gt;.factory</tt> value naming a {@link ProbesMeasureFactory} class.</li>
+ * <li><tt>probes.counters</tt> - the names of the thread counters exposed as meters.</li>
+ * <li><tt>probes.global.counters</tt> - the names of the process wide counters exposed as meters.</li>
+ * <li><tt>probes.strategies</tt> - the {@link ProbesStrategyFactory} classes in voting order.</li>
+ * <li><tt>probes.interceptors</tt> - the {@link ProbesInterceptorFactory} classes in interception order.</li>
+ * </ul>
+ */
+final class Extensions {
+
+  static final String METERS = "probes.meters";
+  static final String COUNTERS = "probes.counters";
+  static final String GLOBAL_COUNTERS = "probes.global.counters";
+  static final String STRATEGIES = "probes.strategies";
+  static final String INTERCEPTORS = "probes.interceptors";
+
+  final MeterImpl[] meters;
+  final ProbesStrategyFactory[] strategies;
+  final ProbesInterceptorFactory[] interceptors;
+
+  Extensions(MeterImpl[] meters, ProbesStrategyFactory[] strategies, ProbesInterceptorFactory[] interceptors) {
+    this.meters = meters;
+    this.strategies = strategies;
+    this.interceptors = interceptors;
+  }
+
+  static Extensions load(Provider provider) {
+    final EnvironmentImpl env = provider.environment;
+    final Names names = provider.names;
+
+    final List<MeterImpl> meters = new ArrayList<MeterImpl>();
+
+    for (String name : list(env.getString(names.parse(METERS), Measures.CLOCK_TIME))) {
+      meters.add(provider.register(names.parse(name), measure(provider, name)));
+    }
+
+    for (String name : list(env.getString(names.parse(COUNTERS)))) {
+      final NameImpl counter = names.parse(name);
+      meters.add(provider.register(counter, new CounterMeasureFactory(counter)));
+    }
+
+    for (String name : list(env.getString(names.parse(GLOBAL_COUNTERS)))) {
+      final GlobalCounterImpl counter = (GlobalCounterImpl) provider.counter(names.parse(name));
+      meters.add(provider.register(counter.name, new CounterMeasureFactory(counter)));
+    }
+
+    final List<ProbesStrategyFactory> strategies = new ArrayList<ProbesStrategyFactory>();
+    for (String cls : list(env.getString(names.parse(STRATEGIES)))) {
+      final ProbesStrategyFactory factory = newInstance(cls, ProbesStrategyFactory.class);
+      factory.init(env);
+      strategies.add(factory);
+    }
+
+    final List<ProbesInterceptorFactory> interceptors = new ArrayList<ProbesInterceptorFactory>();
+    for (String cls : list(env.getString(names.parse(INTERCEPTORS)))) {
+      final ProbesInterceptorFactory factory = newInstance(cls, ProbesInterceptorFactory.class);
+      factory.init(env);
+      interceptors.add(factory);
+    }
+
+    return new Extensions(meters.toArray(new MeterImpl[meters.size()]),
+                          strategies.toArray(new ProbesStrategyFactory[strategies.size()]),
+                          interceptors.toArray(new ProbesInterceptorFactory[interceptors.size()]));
+  }
+
+  /**
+   * Returns the initialized measure factory for a built-in meter or one configured with a <tt>probes.meter.&lt;name&gt;.factory</tt> value.
+   */
+  static ProbesMeasureFactory measure(Provider provider, String name) {
+    ProbesMeasureFactory factory = Measures.builtin(name);
+    if (factory == null) {
+      final String cls = provider.environment.getString(provider.names.parse("probes.meter." + name + ".factory"));
+      if (cls == null) throw new IllegalStateException("no measure factory configured for meter: " + name);
+      factory = newInstance(cls, ProbesMeasureFactory.class);
+    }
+    factory.init(provider.environment);
+    return factory;
+  }
+
+  Extensions with(MeterImpl meter) {
+    return new Extensions(append(meters, meter), strategies, interceptors);
+  }
+
+  Extensions without(MeterImpl meter) {
+    return new Extensions(remove(meters, meter), strategies, interceptors);
+  }
+
+  Extensions with(ProbesStrategyFactory strategy) {
+    return new Extensions(meters, append(strategies, strategy), interceptors);
+  }
+
+  Extensions without(ProbesStrategyFactory strategy) {
+    return new Extensions(meters, remove(strategies, strategy), interceptors);
+  }
+
+  Extensions with(ProbesInterceptorFactory interceptor) {
+    return new Extensions(meters, strategies, append(interceptors, interceptor));
+  }
+
+  Extensions without(ProbesInterceptorFactory interceptor) {
+    return new Extensions(meters, strategies, remove(interceptors, interceptor));
+  }
+
+  static int indexOf(Object[] elements, Object element) {
+    for (int i = 0; i < elements.length; i++) {
+      if (elements[i] == element) return i;
+    }
+    return -1;
+  }
+
+  private static <T> T[] append(T[] elements, T element) {
+    final T[] update = Arrays.copyOf(elements, elements.length + 1);
+    update[elements.length] = element;
+    return update;
+  }
+
+  private static <T> T[] remove(T[] elements, T element) {
+    final int index = indexOf(elements, element);
+    if (index < 0) return elements;
+
+    final T[] update = Arrays.copyOf(elements, elements.length - 1);
+    System.arraycopy(elements, index + 1, update, index, elements.length - index - 1);
+    return update;
+  }
+
+  /**
+   * Splits a comma separated value into its trimmed non-empty parts.
+   */
+  static List<String> list(String value) {
+    final List<String> parts = new ArrayList<String>();
+    if (value == null) return parts;
+
+    for (String part : value.split(",")) {
+      part = part.trim();
+      if (part.length() > 0) parts.add(part);
+    }
+    return parts;
+  }
+
+  static <T> T newInstance(String className, Class<T> type) {
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    if (loader == null) loader = Extensions.class.getClassLoader();
+
+    try {
+      return type.cast(Class.forName(className, true, loader).newInstance());
+    } catch (Exception e) {
+      throw new IllegalStateException("unable to create extension: " + className, e);
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.measure.ProbesMeasure;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The reference implementation of a process wide {@link Probes.Counter Counter}.<p>
+ * Increments are spread over a number of stripes, selected by the id of the calling thread, with each stripe padded to its own cache line
+ * so threads do not contend on a single atomic value. Reading the counter sums the stripes.
+ * A counter is also a {@link ProbesMeasure} so that it can be read as a meter by all thread contexts.
+ */
+final class GlobalCounterImpl implements Probes.Counter, ProbesMeasure {
+
+  // the number of longs in a cache line
+  private static final int PAD = 8;
+
+  final NameImpl name;
+
+  private final AtomicLongArray cells;
+  private final int mask;
+
+  GlobalCounterImpl(NameImpl name, int stripes) {
+    this.name = name;
+    // the first cache line is left unused to avoid sharing with the array header
+    this.cells = new AtomicLongArray((stripes + 1) * PAD);
+    this.mask = stripes - 1;
+  }
+
+  /**
+   * Returns the number of stripes, a power of two, for the number of processors available.
+   */
+  static int stripes() {
+    final int processors = Runtime.getRuntime().availableProcessors();
+    int stripes = 1;
+    while (stripes < processors) stripes <<= 1;
+    return stripes;
+  }
+
+  private int cell() {
+    return ((int) Thread.currentThread().getId() & mask) * PAD + PAD;
+  }
+
+  public Probes.Name getName() {
+    return name;
+  }
+
+  public long getValue() {
+    long sum = 0L;
+    for (int i = PAD; i < cells.length(); i += PAD) sum += cells.get(i);
+    return sum;
+  }
+
+  public void inc() {
+    cells.getAndIncrement(cell());
+  }
+
+  public void inc(long value) {
+    if (value < 0) throw new IllegalArgumentException("value: " + value);
+    cells.getAndAdd(cell(), value);
+  }
+
+  @Override
+  public String toString() {
+    return name.toString();
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+/**
+ * The log-linear bucketing of the histograms held in {@link Stats}.<p>
+ * Values below 8 have a bucket each with every power of two above split into 8 buckets, bounding the relative error of a percentile to 12.5%.
+ * A histogram is an array of bucket counts grown to the highest bucket recorded.
+ */
+final class Histogram {
+
+  static final int SUB_BITS = 3;
+  static final int SUB = 1 << SUB_BITS;
+
+  private Histogram() {}
+
+  static int index(long value) {
+    if (value < SUB) return value < 0L ? 0 : (int) value;
+
+    final int msb = 63 - Long.numberOfLeadingZeros(value);
+    return (msb - SUB_BITS) * SUB + (int) (value >>> (msb - SUB_BITS));
+  }
+
+  /**
+   * Returns the highest value mapped to the bucket.
+   */
+  static long value(int index) {
+    if (index < SUB) return index;
+
+    final int shift = index / SUB - 1;
+    final long sub = index % SUB + SUB;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  static long[] record(long[] histogram, long value, long count) {
+    final int i = index(value);
+    if (histogram == null) histogram = new long[Math.max(i + 1, SUB)];
+    else if (i >= histogram.length) histogram = Stats.grow(histogram, Math.max(i + 1, histogram.length + SUB));
+
+    histogram[i] += count;
+    return histogram;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the percentile, a value between 0 and 1, or zero when the histogram is empty.
+   */
+  static long percentile(long[] histogram, double percentile) {
+    if (histogram == null) return 0L;
+
+    long count = 0L;
+    for (long c : histogram) count += c;
+    if (count == 0L) return 0L;
+
+    final long rank = Math.max(1L, (long) Math.ceil(percentile * count));
+    long seen = 0L;
+    for (int i = 0; i < histogram.length; i++) {
+      seen += histogram[i];
+      if (seen >= rank) return value(i);
+    }
+    return value(histogram.length - 1);
+  }
+
+}
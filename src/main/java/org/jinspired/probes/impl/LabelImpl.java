@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The reference implementation of {@link Probes.Label Label}.<p>
+ * Labels are registered once and shared by all providers with each assigned a sequential index,
+ * the index of the label's bit within the label set of a name.
+ */
+final class LabelImpl implements Probes.Label {
+
+  /**
+   * The maximum number of labels, the number of bits in the label set of a name.
+   */
+  static final int MAX = 64;
+
+  private static final ConcurrentHashMap<String, LabelImpl> LABELS = new ConcurrentHashMap<String, LabelImpl>();
+  private static final LabelImpl[] INDEX = new LabelImpl[MAX];
+
+  private static int count;
+
+  static final LabelImpl JAVA = register("java");
+  static final LabelImpl CLASS = register("class");
+  static final LabelImpl DISABLED = register("disabled");
+  static final LabelImpl PROBE = register("probe");
+  static final LabelImpl HOTSPOT = register("hotspot");
+  static final LabelImpl REGRESSED = register("regressed");
+
+  final String value;
+  final int index;
+
+  private LabelImpl(String value, int index) {
+    this.value = value;
+    this.index = index;
+  }
+
+  /**
+   * Returns the label registered with the specified value or <tt>null</tt>.
+   */
+  static LabelImpl get(String value) {
+    return LABELS.get(value);
+  }
+
+  /**
+   * Returns the label registered with the specified index or <tt>null</tt>.
+   */
+  static LabelImpl at(int index) {
+    return index >= 0 && index < MAX ? INDEX[index] : null;
+  }
+
+  /**
+   * Returns the label registered with the specified value creating it if not already registered.
+   */
+  static synchronized LabelImpl register(String value) {
+    LabelImpl label = LABELS.get(value);
+    if (label == null) {
+      if (count == MAX) throw new IllegalStateException("too many labels: " + value);
+      label = new LabelImpl(value, count++);
+      INDEX[label.index] = label;
+      LABELS.put(value, label);
+    }
+    return label;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return value;
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The index of the names associated with each label, a bitmap per label indexed by name id.<p>
+ * A bitmap is held in chunks of 4096 bits allocated on the first name labeled within a chunk.
+ * Bits are set and cleared with a compare and swap so that labeling is lock free once a chunk has been allocated,
+ * and listing the names with a label reads only the bitmap of the label rather than every interned name.
+ */
+final class LabelIndex {
+
+  private static final int SHIFT = 12;
+  private static final int WORDS = 1 << (SHIFT - 6);
+
+  private volatile AtomicLongArray[][] bitmaps = new AtomicLongArray[LabelImpl.MAX][];
+
+  void set(LabelImpl label, int id, boolean set) {
+    final AtomicLongArray chunk = set ? alloc(label.index, id >>> SHIFT) : chunk(label.index, id >>> SHIFT);
+    if (chunk == null) return;
+
+    final int w = (id >>> 6) & (WORDS - 1);
+    final long bit = 1L << id;
+    while (true) {
+      final long current = chunk.get(w);
+      final long update = set ? current | bit : current & ~bit;
+      if (update == current || chunk.compareAndSet(w, current, update)) return;
+    }
+  }
+
+  boolean get(LabelImpl label, int id) {
+    final AtomicLongArray chunk = chunk(label.index, id >>> SHIFT);
+    return chunk != null && (chunk.get((id >>> 6) & (WORDS - 1)) & (1L << id)) != 0L;
+  }
+
+  /**
+   * Returns the ids of the names with the label in ascending order.
+   */
+  int[] ids(LabelImpl label) {
+    final AtomicLongArray[] chunks = bitmaps[label.index];
+    if (chunks == null) return new int[0];
+
+    int[] ids = new int[64];
+    int n = 0;
+    for (int c = 0; c < chunks.length; c++) {
+      final AtomicLongArray chunk = chunks[c];
+      if (chunk == null) continue;
+
+      for (int w = 0; w < WORDS; w++) {
+        long word = chunk.get(w);
+        while (word != 0L) {
+          if (n == ids.length) {
+            final int[] grown = new int[n << 1];
+            System.arraycopy(ids, 0, grown, 0, n);
+            ids = grown;
+          }
+          ids[n++] = (c << SHIFT) | (w << 6) | Long.numberOfTrailingZeros(word);
+          word &= word - 1;
+        }
+      }
+    }
+
+    final int[] result = new int[n];
+    System.arraycopy(ids, 0, result, 0, n);
+    return result;
+  }
+
+  private AtomicLongArray chunk(int label, int c) {
+    final AtomicLongArray[] chunks = bitmaps[label];
+    return chunks != null && c < chunks.length ? chunks[c] : null;
+  }
+
+  private AtomicLongArray alloc(int label, int c) {
+    final AtomicLongArray chunk = chunk(label, c);
+    return chunk != null ? chunk : create(label, c);
+  }
+
+  private synchronized AtomicLongArray create(int label, int c) {
+    final AtomicLongArray[][] b = bitmaps;
+
+    AtomicLongArray[] chunks = b[label];
+    if (chunks == null || c >= chunks.length) {
+      final AtomicLongArray[] grown = new AtomicLongArray[Math.max(c + 1, chunks == null ? 16 : chunks.length << 1)];
+      if (chunks != null) System.arraycopy(chunks, 0, grown, 0, chunks.length);
+      chunks = grown;
+    }
+    if (chunks[c] == null) chunks[c] = new AtomicLongArray(WORDS);
+
+    // the chunks are published by the volatile write of the bitmaps
+    b[label] = chunks;
+    bitmaps = b;
+
+    return chunks[c];
+  }
+
+}
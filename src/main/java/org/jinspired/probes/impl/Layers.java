@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.interceptor.ProbesInterceptor;
+import org.jinspired.probes.interceptor.ProbesInterceptorFactory;
+import org.jinspired.probes.measure.ProbesMeasure;
+import org.jinspired.probes.strategy.ProbesStrategy;
+import org.jinspired.probes.strategy.ProbesStrategyFactory;
+
+/**
+ * The thread context instances of the measures, strategies and interceptors enabled in a provider runtime stack snapshot.<p>
+ * A probe holds onto the layers it began with so that its end is dispatched to the same meters and interceptors
+ * even if the provider stack has since changed.
+ */
+final class Layers {
+
+  final Extensions extensions;
+  final MeterImpl[] meters;
+  final ProbesMeasure[] measures;
+  final ProbesStrategy[] strategies;
+  final ProbesInterceptor[] interceptors;
+
+  /**
+   * Creates the layers for the context reusing the instances of the previous layers for factories still enabled.
+   */
+  Layers(ContextImpl context, Extensions extensions, Layers previous) {
+    this.extensions = extensions;
+    this.meters = extensions.meters;
+
+    this.measures = new ProbesMeasure[meters.length];
+    for (int i = 0; i < meters.length; i++) {
+      final int p = previous != null ? Extensions.indexOf(previous.meters, meters[i]) : -1;
+      measures[i] = p >= 0 ? previous.measures[p] : meters[i].factory.create(context);
+    }
+
+    final ProbesStrategyFactory[] sfs = extensions.strategies;
+    this.strategies = new ProbesStrategy[sfs.length];
+    for (int i = 0; i < sfs.length; i++) {
+      final int p = previous != null ? Extensions.indexOf(previous.extensions.strategies, sfs[i]) : -1;
+      strategies[i] = p >= 0 ? previous.strategies[p] : sfs[i].create(context);
+    }
+
+    final ProbesInterceptorFactory[] ifs = extensions.interceptors;
+    this.interceptors = new ProbesInterceptor[ifs.length];
+    for (int i = 0; i < ifs.length; i++) {
+      final int p = previous != null ? Extensions.indexOf(previous.extensions.interceptors, ifs[i]) : -1;
+      interceptors[i] = p >= 0 ? previous.interceptors[p] : ifs[i].create(context);
+    }
+  }
+
+  int vote(ProbeImpl probe) {
+    for (ProbesStrategy strategy : strategies) {
+      final int vote = strategy.vote(probe);
+      if (vote != 0) return vote;
+    }
+    return 0;
+  }
+
+  /**
+   * Dispatches the begin to each interceptor, with the interceptors already begun ended should one throw.
+   */
+  void begin(ProbeImpl probe) {
+    final ProbesInterceptor[] is = interceptors;
+    int i = 0;
+    try {
+      for (; i < is.length; i++) is[i].begin(probe);
+    } catch (RuntimeException e) {
+      for (int j = i - 1; j >= 0; j--) is[j].end(probe);
+      throw e;
+    }
+  }
+
+  void end(ProbeImpl probe) {
+    for (int i = interceptors.length - 1; i >= 0; i--) interceptors[i].end(probe);
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.measure.ProbesMeasure;
+import org.jinspired.probes.measure.ProbesMeasureFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+/**
+ * The built-in meter measures offered by the reference implementation.
+ */
+final class Measures {
+
+  static final String CLOCK_TIME = "clock.time";
+  static final String CLOCK_TICK = "clock.tick";
+  static final String CPU_TIME = "cpu.time";
+  static final String ALLOC_BYTES = "alloc.bytes";
+
+  private Measures() {}
+
+  /**
+   * Returns the factory for the built-in meter with the specified name or <tt>null</tt>.
+   */
+  static ProbesMeasureFactory builtin(String name) {
+    if (CLOCK_TIME.equals(name)) return ClockTime.INSTANCE;
+    if (CLOCK_TICK.equals(name)) return ClockTick.INSTANCE;
+    if (CPU_TIME.equals(name)) return CpuTime.INSTANCE;
+    if (ALLOC_BYTES.equals(name)) return new AllocBytes();
+    return null;
+  }
+
+  /**
+   * Returns the simulation of an actor's context, whose virtual clock is read by the time meters, or <tt>null</tt>.
+   */
+  private static Simulation simulation(Probes.Context context) {
+    return context instanceof ContextImpl ? ((ContextImpl) context).simulation : null;
+  }
+
+  /**
+   * The wall clock time in microseconds.
+   */
+  static final class ClockTime implements ProbesMeasureFactory, ProbesMeasure {
+
+    static final ClockTime INSTANCE = new ClockTime();
+
+    public void init(Probes.Environment environment) {}
+
+    public ProbesMeasure create(Probes.Context context) {
+      final Simulation simulation = simulation(context);
+      return simulation != null ? simulation.time : this;
+    }
+
+    public long getValue() {
+      return System.nanoTime() / 1000L;
+    }
+
+  }
+
+  /**
+   * The wall clock time in nanoseconds.
+   */
+  static final class ClockTick implements ProbesMeasureFactory, ProbesMeasure {
+
+    static final ClockTick INSTANCE = new ClockTick();
+
+    public void init(Probes.Environment environment) {}
+
+    public ProbesMeasure create(Probes.Context context) {
+      final Simulation simulation = simulation(context);
+      return simulation != null ? simulation.tick : this;
+    }
+
+    public long getValue() {
+      return System.nanoTime();
+    }
+
+  }
+
+  /**
+   * The thread cpu time in microseconds.
+   */
+  static final class CpuTime implements ProbesMeasureFactory, ProbesMeasure {
+
+    static final CpuTime INSTANCE = new CpuTime();
+
+    private final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+    public void init(Probes.Environment environment) {}
+
+    public ProbesMeasure create(Probes.Context context) {
+      // an actor of a simulation is busy for all of the virtual time it is metered
+      final Simulation simulation = simulation(context);
+      return simulation != null ? simulation.time : this;
+    }
+
+    public long getValue() {
+      final long value = bean.getCurrentThreadCpuTime();
+      return value > 0 ? value / 1000L : 0L;
+    }
+
+  }
+
+  /**
+   * The bytes allocated by the thread, requiring a JVM offering the <tt>com.sun.management.ThreadMXBean</tt> extension.
+   * The extension postdates the Java 6 platform and so is accessed reflectively, with the method resolved once on initialization
+   * and the arguments of a thread's reading built once with its measure. A reading still allocates the boxed value returned,
+   * and the extension itself allocates on some JVMs such as Java 8, so a few bytes per reading are counted within the delta of a probe.
+   */
+  static final class AllocBytes implements ProbesMeasureFactory {
+
+    private ThreadMXBean bean;
+    private Method allocated;
+
+    public void init(Probes.Environment environment) {
+      bean = ManagementFactory.getThreadMXBean();
+      try {
+        final Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+        if (!type.isInstance(bean)) throw new IllegalStateException(ALLOC_BYTES + " not supported by the JVM");
+
+        allocated = type.getMethod("getThreadAllocatedBytes", long.class);
+        if (!(Boolean) type.getMethod("isThreadAllocatedMemoryEnabled").invoke(bean)) {
+          type.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(bean, true);
+        }
+      } catch (IllegalStateException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IllegalStateException(ALLOC_BYTES + " not supported by the JVM", e);
+      }
+    }
+
+    public ProbesMeasure create(Probes.Context context) {
+      // contexts are created on their own thread
+      final Object[] args = {Thread.currentThread().getId()};
+      return new ProbesMeasure() {
+        public long getValue() {
+          try {
+            final long value = (Long) allocated.invoke(bean, args);
+            return value > 0 ? value : 0L;
+          } catch (Exception e) {
+            return 0L;
+          }
+        }
+      };
+    }
+
+  }
+
+}
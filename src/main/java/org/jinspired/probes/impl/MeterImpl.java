@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.measure.ProbesMeasureFactory;
+
+/**
+ * The reference implementation of {@link Probes.Meter Meter}.<p>
+ * Each meter is registered once with the provider and assigned an index used to lay out aggregated metering data.
+ */
+final class MeterImpl implements Probes.Meter {
+
+  final NameImpl name;
+  final int index;
+  final ProbesMeasureFactory factory;
+
+  MeterImpl(NameImpl name, int index, ProbesMeasureFactory factory) {
+    this.name = name;
+    this.index = index;
+    this.factory = factory;
+  }
+
+  public Probes.Name getName() {
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return name.toString();
+  }
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The reference implementation of {@link Probes.Name Name}.<p>
+ * Instances are interned by the {@link Names} table and assigned a dense id used to index per name data held elsewhere.
+ * Whether a name is disabled is cached in its flags so that the check when a probe begins is a single field read.
+ * The labels of a name are held as a set of bits indexed by label, mirrored in the provider wide {@link LabelIndex}.
+ * Once the number of children of a name reaches its cap new children are mapped to its shared overflow child.
+ */
+final class NameImpl implements Probes.Name {
+
+  /**
+   * The flag set when the name has been labeled disabled.
+   */
+  static final int LABELED = 1;
+
+  /**
+   * The flag set when the name has been excluded by the {@link Rules}.
+   */
+  static final int EXCLUDED = 2;
+
+  final Names names;
+  final NameImpl prefix;
+  final String value;
+  final int length;
+  final int id;
+
+  volatile ConcurrentHashMap<String, NameImpl> children;
+
+  /**
+   * The number of children and the cap on it, zero if unbounded, guarded by the {@link Names} table.
+   */
+  int size;
+  int cap;
+
+  /**
+   * The shared child that new children are mapped to once the cap has been reached, otherwise <tt>null</tt>.
+   */
+  volatile NameImpl other;
+
+  private volatile long labels;
+  private volatile int flags;
+
+  NameImpl(Names names, NameImpl prefix, String value, int id) {
+    this.names = names;
+    this.prefix = prefix;
+    this.value = value;
+    this.length = prefix == null ? 1 : prefix.length + 1;
+    this.id = id;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public String valueAt(int index) {
+    if (index < 0 || index >= length) throw new IllegalArgumentException("index: " + index);
+
+    NameImpl name = this;
+    for (int i = length - 1; i > index; i--) name = name.prefix;
+    return name.value;
+  }
+
+  public Probes.Name getPrefix() {
+    return prefix;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public Probes.Name name(String value) {
+    if (value == null) throw new NullPointerException("value");
+
+    final ConcurrentHashMap<String, NameImpl> map = children;
+    if (map != null) {
+      final NameImpl name = map.get(value);
+      if (name != null) return name;
+    }
+
+    final NameImpl o = other;
+    return o != null ? names.overflow(o) : names.create(this, value);
+  }
+
+  public Iterator<Probes.Label> labels() {
+    long bits = labels;
+
+    final LabelImpl[] result = new LabelImpl[Long.bitCount(bits)];
+    for (int i = 0; bits != 0L; i++, bits &= bits - 1) result[i] = LabelImpl.at(Long.numberOfTrailingZeros(bits));
+    return new ArrayIterator<Probes.Label>(result);
+  }
+
+  public boolean contains(Probes.Label label) {
+    if (label == null) throw new NullPointerException("label");
+    return (labels & (1L << ((LabelImpl) label).index)) != 0L;
+  }
+
+  public Probes.Name find(String value) {
+    for (NameImpl name = this; name != null; name = name.prefix) {
+      if (name.value.equals(value)) return name;
+    }
+    return null;
+  }
+
+  public boolean startsWith(Probes.Name name) {
+    final int len = name.getLength();
+    if (len > length) return false;
+
+    NameImpl n = this;
+    for (int i = length; i > len; i--) n = n.prefix;
+    return n == name;
+  }
+
+  public boolean isDisabled() {
+    return flags != 0;
+  }
+
+  /**
+   * Sets or clears the flag returning <tt>false</tt> if unchanged.
+   */
+  synchronized boolean flag(int flag, boolean set) {
+    final int current = flags;
+    final int update = set ? current | flag : current & ~flag;
+    if (update == current) return false;
+
+    flags = update;
+    return true;
+  }
+
+  /**
+   * Associates the label with this name returning <tt>false</tt> if already associated.
+   */
+  synchronized boolean label(LabelImpl label) {
+    if (contains(label)) return false;
+
+    labels |= 1L << label.index;
+    names.labels.set(label, id, true);
+
+    if (label == LabelImpl.DISABLED) flag(LABELED, true);
+
+    return true;
+  }
+
+  /**
+   * Removes the label association from this name returning <tt>false</tt> if not associated.
+   */
+  synchronized boolean unlabel(LabelImpl label) {
+    if (!contains(label)) return false;
+
+    labels &= ~(1L << label.index);
+    names.labels.set(label, id, false);
+
+    if (label == LabelImpl.DISABLED) flag(LABELED, false);
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    if (prefix == null) return value;
+
+    final StringBuilder sb = new StringBuilder();
+    append(sb, this);
+    return sb.toString();
+  }
+
+  private static void append(StringBuilder sb, NameImpl name) {
+    if (name.prefix != null) {
+      append(sb, name.prefix);
+      sb.append('.');
+    }
+    sb.append(name.value);
+  }
+
+}
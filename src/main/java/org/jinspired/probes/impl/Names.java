@@ -0,0 +1,267 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The intern table for {@link NameImpl} instances.<p>
+ * Lookups are lock free with the creation of a new name serialized on the table so that ids are allocated densely.
+ * The {@link Rules} are evaluated for a name on its creation and for all names when the rules are replaced.<p>
+ * The number of children of each name, and of root names, can be capped to bound the growth of the table when names are built
+ * from unbounded values such as urls or statements. Once the cap is reached a new child is mapped to a shared <tt>&lt;other&gt;</tt>
+ * child, so interning is kept, with the miss path then being a field read rather than a lock. The default cap does not apply to the
+ * names under the <tt>probes</tt> root, those of the implementation's own configuration, counters and meters, which are bounded
+ * and must not be mapped to an overflow name, though a specific cap can still be set on them.
+ */
+final class Names {
+
+  static final String CAP = "probes.names.cap";
+  static final String CAPS = "probes.names.caps";
+  static final String OTHER = "<other>";
+  static final String ROOT = "probes";
+
+  final LabelIndex labels = new LabelIndex();
+
+  private final ConcurrentHashMap<String, NameImpl> roots = new ConcurrentHashMap<String, NameImpl>();
+
+  private volatile NameImpl[] table = new NameImpl[1024];
+  private volatile int size;
+
+  private Rules rules = Rules.NONE;
+
+  private int cap;
+  private Map<String, Integer> caps = new HashMap<String, Integer>();
+  private int rootSize;
+  private volatile NameImpl rootOther;
+  private Probes.Counter overflows;
+
+  /**
+   * Returns the interned root name with the specified value.
+   */
+  NameImpl name(String value) {
+    if (value == null) throw new NullPointerException("value");
+
+    final NameImpl name = roots.get(value);
+    if (name != null) return name;
+
+    final NameImpl o = rootOther;
+    return o != null ? overflow(o) : create(null, value);
+  }
+
+  /**
+   * Returns the interned name following the parsing of the value with a delimiter of '.' ignoring empty parts.
+   */
+  NameImpl parse(String value) {
+    if (value == null) throw new NullPointerException("value");
+
+    NameImpl name = null;
+    int start = 0;
+    final int len = value.length();
+    while (start <= len) {
+      int end = value.indexOf('.', start);
+      if (end < 0) end = len;
+      if (end > start) {
+        final String part = value.substring(start, end);
+        name = name == null ? name(part) : (NameImpl) name.name(part);
+      }
+      start = end + 1;
+    }
+
+    return name != null ? name : name(value);
+  }
+
+  /**
+   * Returns the interned name parsed as by {@link #parse(String)} or <tt>null</tt> if not already interned.
+   */
+  NameImpl find(String value) {
+    if (value == null) throw new NullPointerException("value");
+
+    NameImpl name = null;
+    int start = 0;
+    final int len = value.length();
+    while (start <= len) {
+      int end = value.indexOf('.', start);
+      if (end < 0) end = len;
+      if (end > start) {
+        final ConcurrentHashMap<String, NameImpl> map = name == null ? roots : name.children;
+        name = map != null ? map.get(value.substring(start, end)) : null;
+        if (name == null) return null;
+      }
+      start = end + 1;
+    }
+
+    return name;
+  }
+
+  /**
+   * Returns the name with the specified id or <tt>null</tt>.
+   */
+  NameImpl get(int id) {
+    final NameImpl[] names = table;
+    return id >= 0 && id < names.length ? names[id] : null;
+  }
+
+  /**
+   * Returns the names associated with the label in id order.
+   */
+  List<NameImpl> labeled(LabelImpl label) {
+    final int[] ids = labels.ids(label);
+    final List<NameImpl> result = new ArrayList<NameImpl>(ids.length);
+    for (int id : ids) result.add(get(id));
+    return result;
+  }
+
+  /**
+   * The number of names interned which is also the upper bound (exclusive) of allocated ids.
+   */
+  int size() {
+    return size;
+  }
+
+  synchronized NameImpl create(NameImpl prefix, String value) {
+    ConcurrentHashMap<String, NameImpl> map;
+    if (prefix == null) {
+      map = roots;
+    } else {
+      map = prefix.children;
+      if (map == null) prefix.children = map = new ConcurrentHashMap<String, NameImpl>(4);
+    }
+
+    NameImpl name = map.get(value);
+    if (name != null) return name;
+
+    final int limit = prefix == null ? (value.equals(ROOT) ? 0 : cap) : prefix.cap;
+    if (limit > 0 && (prefix == null ? rootSize : prefix.size) >= limit && !value.equals(OTHER)) {
+      NameImpl o = prefix == null ? rootOther : prefix.other;
+      if (o == null) {
+        o = create(prefix, OTHER);
+        if (prefix == null) rootOther = o;
+        else prefix.other = o;
+      }
+      return overflow(o);
+    }
+
+    final int id = size;
+    name = new NameImpl(this, prefix, value, id);
+    if (!rules.isEmpty()) name.flag(NameImpl.EXCLUDED, rules.excluded(rules.states(name)));
+
+    NameImpl[] names = table;
+    if (id == names.length) {
+      final NameImpl[] grown = new NameImpl[names.length << 1];
+      System.arraycopy(names, 0, grown, 0, names.length);
+      names = grown;
+    }
+    names[id] = name;
+    table = names;
+    size = id + 1;
+
+    name.cap = cap(name);
+    if (prefix == null) rootSize++;
+    else prefix.size++;
+
+    map.put(value, name);
+
+    return name;
+  }
+
+  /**
+   * Counts the mapping of a new child to the overflow name returning the overflow name.
+   */
+  NameImpl overflow(NameImpl other) {
+    final Probes.Counter c = overflows;
+    if (c != null) c.inc();
+    return other;
+  }
+
+  /**
+   * Sets the default cap on the number of children of a name, zero if unbounded, along with the caps of specific names
+   * and the counter of the new children mapped to overflow names. The cap of all names already interned is replaced.
+   */
+  synchronized void limit(int cap, Map<String, Integer> caps, Probes.Counter overflows) {
+    this.cap = cap;
+    this.caps = caps;
+    this.overflows = overflows;
+
+    final NameImpl[] names = table;
+    for (int i = 0, n = size; i < n; i++) names[i].cap = cap(names[i]);
+  }
+
+  /**
+   * Parses the comma separated <tt>name=cap</tt> entries of the caps of specific names.
+   */
+  static Map<String, Integer> caps(String value) {
+    final Map<String, Integer> caps = new HashMap<String, Integer>();
+    for (String entry : Extensions.list(value)) {
+      final int i = entry.lastIndexOf('=');
+      if (i <= 0) throw new IllegalStateException(CAPS + ": " + entry);
+      try {
+        caps.put(entry.substring(0, i).trim(), Integer.valueOf(entry.substring(i + 1).trim()));
+      } catch (NumberFormatException e) {
+        throw new IllegalStateException(CAPS + ": " + entry, e);
+      }
+    }
+    return caps;
+  }
+
+  private int cap(NameImpl name) {
+    final Integer c = caps.isEmpty() ? null : caps.get(name.toString());
+    if (c != null) return c;
+
+    NameImpl root = name;
+    while (root.prefix != null) root = root.prefix;
+    return root.value.equals(ROOT) ? 0 : cap;
+  }
+
+  /**
+   * Replaces the rules re-evaluating all names by walking the name trie from its roots,
+   * with the rule automaton states of a name derived from those of its prefix.
+   */
+  synchronized void apply(Rules rules) {
+    this.rules = rules;
+
+    final Rules r = rules;
+    final List<NameImpl> pending = new ArrayList<NameImpl>(roots.values());
+    final List<long[]> states = new ArrayList<long[]>();
+    final long[] start = r.start();
+    for (int i = 0; i < pending.size(); i++) states.add(start);
+
+    while (!pending.isEmpty()) {
+      final int last = pending.size() - 1;
+      final NameImpl name = pending.remove(last);
+      final long[] s = r.next(states.remove(last), name.value);
+
+      name.flag(NameImpl.EXCLUDED, r.excluded(s));
+
+      final ConcurrentHashMap<String, NameImpl> map = name.children;
+      if (map != null) {
+        for (NameImpl child : map.values()) {
+          pending.add(child);
+          states.add(s);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.measure.ProbesMeasure;
+import org.jinspired.probes.strategy.ProbesStrategy;
+import org.jinspired.probes.strategy.ProbesStrategyFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A strategy factory holding the cost of metering to a budget, a fraction of the CPU time of the process.<p>
+ * The cost is estimated at each interval from the calibrated cost of a metered firing and the number of metered firings
+ * counted by the strategy of each context. A context whose own cost exceeds the budget has its sampling tightened, halving
+ * the firings metered, and relaxed again once its cost falls below half the budget. When the cost of all contexts exceeds
+ * the budget the names of the lowest value are labeled <tt>disabled</tt>, the value of a name being the inherent time of its
+ * firings, on the first meter within the shortest of the rolling {@link Windows} when enabled, so that the names metered at the
+ * highest cost relative to the time they account for go first, with the names fired most often going first among those of equal value.
+ * They are re-enabled, most recently disabled first, once the cost along with the cost a name had when disabled falls below half the
+ * budget, with the latter halved on each interval the cost is below half the budget. The names are re-enabled and the governing
+ * thread stopped once the factory is removed from the provider runtime stack.<p>
+ * The following values are read from the environment:
+ * <ul>
+ * <li><tt>probes.governor.budget</tt> - the fraction of CPU time, defaults to <tt>0.005</tt></li>
+ * <li><tt>probes.governor.interval</tt> - the evaluation interval in milliseconds, defaults to <tt>1000</tt></li>
+ * <li><tt>probes.governor.cost</tt> - the cost of a metered firing in nanoseconds, calibrated on start when not set by reading
+ * and aggregating the measures of the meters on the stack without firing a probe</li>
+ * </ul>
+ */
+public final class OverheadGovernor implements ProbesStrategyFactory {
+
+  static final String BUDGET = "probes.governor.budget";
+  static final String INTERVAL = "probes.governor.interval";
+  static final String COST = "probes.governor.cost";
+
+  private static final Logger LOGGER = Logger.getLogger(OverheadGovernor.class.getName());
+
+  private static final int MAX_SHIFT = 10;
+  private static final int CALIBRATION = 100000;
+
+  private final List<WeakReference<Strategy>> strategies = new ArrayList<WeakReference<Strategy>>();
+  private final List<NameImpl> disabled = new ArrayList<NameImpl>();
+  private final List<Double> costs = new ArrayList<Double>();
+
+  private double budget;
+  private long interval;
+  private volatile double cost;
+  private Provider provider;
+  private Thread thread;
+
+  public void init(Probes.Environment environment) {
+    budget = environment.getDouble(Probes.parse(BUDGET), 0.005D);
+    interval = environment.getLong(Probes.parse(INTERVAL), 1000L);
+    cost = environment.getDouble(Probes.parse(COST), 0.0D);
+
+    if (budget <= 0.0D || budget >= 1.0D) throw new IllegalStateException(BUDGET + ": " + budget);
+    if (interval <= 0L) throw new IllegalStateException(INTERVAL + ": " + interval);
+  }
+
+  public synchronized ProbesStrategy create(Probes.Context context) {
+    final Strategy strategy = new Strategy();
+    strategies.add(new WeakReference<Strategy>(strategy));
+
+    if (provider == null) {
+      provider = ((ContextImpl) context).provider;
+
+      thread = new Thread("probes-governor") {
+        @Override
+        public void run() {
+          govern(this);
+        }
+      };
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    return strategy;
+  }
+
+  private void govern(Thread current) {
+    if (cost <= 0.0D) {
+      cost = calibrate();
+      LOGGER.log(Level.INFO, "Calibrated metering cost: " + cost + "ns");
+    }
+    clear();
+
+    final int cpus = Runtime.getRuntime().availableProcessors();
+    long last = System.nanoTime();
+    while (true) {
+      try {
+        Thread.sleep(interval);
+      } catch (InterruptedException e) {
+        return;
+      }
+
+      synchronized (this) {
+        if (thread != current) return;
+        if (Extensions.indexOf(provider.stack().strategies, this) < 0) {
+          stop();
+          return;
+        }
+      }
+
+      final long now = System.nanoTime();
+      evaluate(now - last, cpus);
+      last = now;
+    }
+  }
+
+  /**
+   * Returns the nanoseconds taken by a metered firing, timing the reading of the measures of the meters on the stack at both ends
+   * of a firing and the aggregation of the deltas into stats private to the calibration, so no probe is fired and no name metered.
+   */
+  private double calibrate() {
+    final Probes.Context context = Probes.context();
+    final MeterImpl[] meters = provider.stack().meters;
+    final ProbesMeasure[] measures = new ProbesMeasure[meters.length];
+    for (int i = 0; i < meters.length; i++) measures[i] = meters[i].factory.create(context);
+
+    final Stats stats = new Stats(null, provider.meterCount());
+    fire(meters, measures, stats);
+
+    final long start = System.nanoTime();
+    fire(meters, measures, stats);
+    return (double) (System.nanoTime() - start) / CALIBRATION;
+  }
+
+  private static void fire(MeterImpl[] meters, ProbesMeasure[] measures, Stats stats) {
+    final long[] readings = new long[measures.length];
+    for (int n = 0; n < CALIBRATION; n++) {
+      for (int i = 0; i < measures.length; i++) readings[i] = measures[i].getValue();
+      for (int i = 0; i < measures.length; i++) {
+        final long delta = measures[i].getValue() - readings[i];
+        stats.add(meters[i].index, 1L, delta, delta);
+      }
+    }
+  }
+
+  /**
+   * Re-enables the names disabled and releases the provider once the factory is no longer on the stack,
+   * with the governing thread started again should the factory be added back.
+   */
+  private void stop() {
+    for (NameImpl name : disabled) {
+      if (name.unlabel(LabelImpl.DISABLED)) LOGGER.log(Level.INFO, "Re-enabled metering of: " + name);
+    }
+    disabled.clear();
+    costs.clear();
+    strategies.clear();
+
+    provider = null;
+    thread = null;
+  }
+
+  /**
+   * Clears the firings counted so far, those counted while calibrating.
+   */
+  private synchronized void clear() {
+    for (WeakReference<Strategy> ref : strategies) {
+      final Strategy s = ref.get();
+      if (s != null) {
+        final int[] c = s.counts;
+        for (int id = 0; id < c.length; id++) c[id] = 0;
+      }
+    }
+  }
+
+  /**
+   * Adjusts the sampling of each context and the names disabled to the cost of the firings metered within the elapsed nanoseconds.
+   */
+  synchronized void evaluate(long elapsed, int cpus) {
+    if (provider == null) return;
+
+    final int size = provider.names.size();
+    final long[] counts = new long[size];
+    long firings = 0L;
+
+    for (Iterator<WeakReference<Strategy>> it = strategies.iterator(); it.hasNext();) {
+      final Strategy s = it.next().get();
+      if (s == null) {
+        it.remove();
+        continue;
+      }
+
+      // the counts are read and cleared racing with the context's thread so are an estimate
+      final int[] c = s.counts;
+      long n = 0L;
+      for (int id = 0; id < c.length && id < size; id++) {
+        n += c[id];
+        counts[id] += c[id];
+        c[id] = 0;
+      }
+      firings += n;
+
+      final double used = n * cost / elapsed;
+      if (used > budget && s.shift < MAX_SHIFT) s.shift++;
+      else if (used < budget / 2.0D && s.shift > 0) s.shift--;
+    }
+
+    double used = firings * cost / ((double) elapsed * cpus);
+    if (used > budget) {
+      // disable the names of the lowest value until the estimated cost is within the budget
+      final Integer[] ids = rank(counts);
+      for (int i = 0; i < ids.length && used > budget; i++) {
+        final int id = ids[i];
+        final NameImpl name = provider.names.get(id);
+        final double saved = counts[id] * cost / ((double) elapsed * cpus);
+        if (name.label(LabelImpl.DISABLED)) {
+          disabled.add(name);
+          costs.add(saved);
+          LOGGER.log(Level.INFO, "Disabled metering of: " + name + " to hold metering cost to budget: " + budget);
+        }
+        used -= saved;
+      }
+    } else if (!disabled.isEmpty() && used < budget / 2.0D) {
+      final int last = disabled.size() - 1;
+      final double saved = costs.get(last);
+      if (used + saved < budget / 2.0D) {
+        final NameImpl name = disabled.remove(last);
+        costs.remove(last);
+        if (name.unlabel(LabelImpl.DISABLED)) LOGGER.log(Level.INFO, "Re-enabled metering of: " + name);
+      } else {
+        // the load may have dropped since the name was disabled so its cost is decayed on each quiet interval
+        costs.set(last, saved / 2.0D);
+      }
+    }
+  }
+
+  /**
+   * Returns the ids of the names fired within the interval ordered by increasing inherent time per firing within the shortest
+   * rolling window, then by decreasing firings, sorted once rather than rescanning all names for each name disabled.
+   */
+  private Integer[] rank(final long[] counts) {
+    final Windows windows = provider.windows;
+    int window = -1;
+    if (windows != null) {
+      for (int i = 0; i < windows.lengths.length; i++) {
+        if (window < 0 || windows.lengths[i] < windows.lengths[window]) window = i;
+      }
+    }
+
+    final long now = System.currentTimeMillis();
+    final double[] values = new double[counts.length];
+    final List<Integer> fired = new ArrayList<Integer>();
+    for (int id = 0; id < counts.length; id++) {
+      if (counts[id] == 0L) continue;
+      fired.add(id);
+
+      if (window >= 0) {
+        final long[] v = windows.values(id, window, now);
+        final long n = Table.value(v, 0, Stats.COUNT);
+        values[id] = n > 0L ? (double) Table.value(v, 0, Stats.INHERENT) / n : 0.0D;
+      }
+    }
+
+    final Integer[] ids = fired.toArray(new Integer[fired.size()]);
+    Arrays.sort(ids, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        final int c = Double.compare(values[a], values[b]);
+        if (c != 0) return c;
+        return counts[a] > counts[b] ? -1 : counts[a] < counts[b] ? 1 : 0;
+      }
+    });
+    return ids;
+  }
+
+  /**
+   * The strategy of a context sampling one in two to the power of the shift firings and counting the metered firings by name.
+   */
+  private static final class Strategy implements ProbesStrategy {
+
+    volatile int shift;
+    int[] counts = new int[256];
+    private int firings;
+
+    public int vote(Probes.Probe probe) {
+      final int s = shift;
+      if (s > 0 && (++firings & ((1 << s) - 1)) != 0) return -1;
+
+      final int id = ((ProbeImpl) probe).name.id;
+      int[] c = counts;
+      if (id >= c.length) {
+        final int[] grown = new int[Math.max(c.length << 1, id + 1)];
+        System.arraycopy(c, 0, grown, 0, c.length);
+        counts = c = grown;
+      }
+      c[id]++;
+      return 0;
+    }
+
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+/**
+ * The call tree merged from those of all contexts holding the cumulative metering of each path as of the last snapshot.<p>
+ * The tree is updated only by the {@link Snapshotter} with the values and children of a node replaced rather than changed,
+ * so that it can be walked by queries without locking. Paths new once the node cap has been reached are dropped.
+ */
+final class PathTable {
+
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  final Node root = new Node(null, null);
+
+  private final int nodes;
+  private int size;
+
+  PathTable(int nodes) {
+    this.nodes = nodes;
+  }
+
+  /**
+   * Adds the deltas of a context call tree node to the merged node of its path.
+   */
+  void add(CallTree.Node node, long[] deltas) {
+    final Node merged = merged(node);
+    if (merged == null) return;
+
+    final long[] values = merged.values;
+    final long[] sum = new long[Math.max(values.length, deltas.length)];
+    System.arraycopy(values, 0, sum, 0, values.length);
+    for (int i = 0; i < deltas.length; i++) sum[i] += deltas[i];
+    merged.values = sum;
+  }
+
+  private Node merged(CallTree.Node node) {
+    if (node.parent == null) return root;
+    if (node.merged != null) return node.merged;
+
+    final Node parent = merged(node.parent);
+    if (parent == null) return null;
+
+    Node merged = parent.child(node.name);
+    if (merged == null) {
+      if (size >= nodes) return null;
+      size++;
+
+      merged = new Node(parent, node.name);
+      final Node[] children = parent.children;
+      final Node[] update = new Node[children.length + 1];
+      System.arraycopy(children, 0, update, 0, children.length);
+      update[children.length] = merged;
+      parent.children = update;
+    }
+
+    return node.merged = merged;
+  }
+
+  static final class Node {
+
+    final Node parent;
+    final NameImpl name;
+
+    volatile long[] values = new long[0];
+    volatile Node[] children = NO_CHILDREN;
+
+    Node(Node parent, NameImpl name) {
+      this.parent = parent;
+      this.name = name;
+    }
+
+    Node child(NameImpl name) {
+      for (Node n : children) {
+        if (n.name == name) return n;
+      }
+      return null;
+    }
+
+  }
+
+}
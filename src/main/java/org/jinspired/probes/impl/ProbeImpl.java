@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+import java.util.Iterator;
+
+/**
+ * The reference implementation of {@link Probes.Probe Probe}.<p>
+ * The readings are held in a single array as a (low, high, inner) triple for each meter of the layers the probe began with,
+ * with inner being the total delta of the metered probes nested directly within this probe's firing.
+ * A firing voted <tt>YES</tt> by a strategy is metered at full fidelity, with a histogram recorded and the call tree beneath it
+ * captured even when details and call tree mode are not enabled.
+ */
+final class ProbeImpl implements Probes.Probe {
+
+  static final int LOW = 0;
+  static final int HIGH = 1;
+  static final int INNER = 2;
+  static final int FIELDS = 3;
+
+  final ContextImpl context;
+  final NameImpl name;
+
+  Layers layers;
+  long[] readings;
+  ProbeImpl parent;
+  CallTree.Node node;
+  int depth;
+  int state;
+  boolean full;
+
+  ProbeImpl(ContextImpl context, NameImpl name) {
+    this.context = context;
+    this.name = name;
+    this.layers = context.layers();
+    this.readings = new long[layers.measures.length * FIELDS];
+
+    if (!name.contains(LabelImpl.PROBE)) name.label(LabelImpl.PROBE);
+  }
+
+  public Probes.Name getName() {
+    return name;
+  }
+
+  public void begin() {
+    final ContextImpl ctx = context;
+    if (state != 0) ctx.provider.contract.rebegin(this);
+
+    final Layers l = ctx.layers();
+
+    parent = ctx.top;
+    depth = parent != null ? parent.depth + 1 : 1;
+    ctx.top = this;
+
+    if (l != layers) {
+      layers = l;
+      if (readings.length != l.measures.length * FIELDS) readings = new long[l.measures.length * FIELDS];
+    }
+
+    final int vote = name.isDisabled() ? -1 : l.vote(this);
+    if (vote < 0) {
+      state = -1;
+      return;
+    }
+
+    state = 1;
+    full = vote > 0;
+    node = ctx.node(this);
+
+    final long[] r = readings;
+    for (int i = 0, o = 0; i < l.measures.length; i++, o += FIELDS) {
+      r[o + LOW] = 0L;
+      r[o + HIGH] = l.measures[i].getValue();
+      r[o + INNER] = 0L;
+    }
+
+    try {
+      l.begin(this);
+    } catch (RuntimeException e) {
+      // an interceptor taking control of the thread, such as by rejecting the call, leaves the probe unfired
+      ctx.top = parent;
+      parent = null;
+      node = null;
+      state = 0;
+      throw e;
+    }
+  }
+
+  public void end() {
+    end(1);
+  }
+
+  public void end(int count) {
+    if (count < 0) throw new IllegalArgumentException("count: " + count);
+
+    final int s = state;
+    if (s == 0) return;
+
+    final ContextImpl ctx = context;
+    if (ctx.top != this) ctx.provider.contract.overlap(this);
+
+    if (s > 0) {
+      final Layers l = layers;
+      final long[] r = readings;
+      for (int i = 0, o = 0; i < l.measures.length; i++, o += FIELDS) {
+        r[o + LOW] = r[o + HIGH];
+        r[o + HIGH] = l.measures[i].getValue();
+      }
+
+      // a zero batch is not a firing so is left out of all metering, with the interceptors still balancing their begin
+      if (count > 0) {
+        ctx.record(this, count);
+        if (ctx.ring != null) ctx.ring.record(this);
+        if (ctx.recorder != null) ctx.recorder.record(this, count);
+        if (ctx.provider.exemplars != null) ctx.provider.exemplars.record(ctx, this, count);
+      }
+
+      l.end(this);
+    }
+
+    // a probe ended out of order under the count policy has already been removed from the stack
+    if (ctx.top == this) ctx.top = parent;
+    parent = null;
+    node = null;
+    state = 0;
+  }
+
+  public Iterator<Probes.Reading> readings() {
+    final MeterImpl[] meters = layers.meters;
+
+    final ReadingImpl[] rs = new ReadingImpl[meters.length];
+    for (int i = 0; i < rs.length; i++) rs[i] = new ReadingImpl(meters[i], readings, i * FIELDS);
+
+    return new ArrayIterator<Probes.Reading>(rs);
+  }
+
+  public Probes.Reading reading(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+
+    final MeterImpl[] meters = layers.meters;
+    for (int i = 0; i < meters.length; i++) {
+      if (meters[i].name == name) return new ReadingImpl(meters[i], readings, i * FIELDS);
+    }
+    return null;
+  }
+
+  public void run(Runnable runnable) {
+    if (runnable == null) throw new NullPointerException("runnable");
+
+    begin();
+    try {
+      runnable.run();
+    } finally {
+      end();
+    }
+  }
+
+  public int getState() {
+    return state;
+  }
+
+  @Override
+  public String toString() {
+    return name.toString();
+  }
+
+}
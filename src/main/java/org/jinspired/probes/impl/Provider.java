@@ -0,0 +1,345 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.interceptor.ProbesInterceptorFactory;
+import org.jinspired.probes.measure.ProbesMeasureFactory;
+import org.jinspired.probes.spi.ProbesProvider;
+import org.jinspired.probes.strategy.ProbesStrategyFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The barebones reference implementation of the {@link ProbesProvider} service provider interface.<p>
+ * The global environment is loaded from the properties file named by the <tt>probes.config</tt> system property
+ * followed by all system properties prefixed with <tt>probes.</tt>.
+ * The meters and extensions configured within it are loaded on the creation of the first context,
+ * by which time the {@link Probes} class has been initialized and can be used by extension factories.
+ * The name include and exclude rules are applied on initialization.
+ *
+ * @see Extensions
+ */
+final class Provider implements ProbesProvider {
+
+  static final String CONFIG = "probes.config";
+
+  private static final Logger LOGGER = Logger.getLogger(Provider.class.getName());
+  private static final Extensions EMPTY = new Extensions(new MeterImpl[0], new ProbesStrategyFactory[0], new ProbesInterceptorFactory[0]);
+
+  final Names names = new Names();
+  final EnvironmentImpl environment = new EnvironmentImpl(names, null);
+  private final ClassNames classes = new ClassNames(names);
+
+  private final ConcurrentHashMap<Probes.Name, MeterImpl> meters = new ConcurrentHashMap<Probes.Name, MeterImpl>();
+  private volatile MeterImpl[] table = new MeterImpl[0];
+
+  private final ConcurrentHashMap<Probes.Name, GlobalCounterImpl> counters = new ConcurrentHashMap<Probes.Name, GlobalCounterImpl>();
+  private final int stripes = GlobalCounterImpl.stripes();
+
+  private volatile Extensions extensions;
+
+  /**
+   * Whether contexts record the changes read by the {@link Snapshotter}, set on initialization.
+   */
+  boolean snapshots;
+
+  /**
+   * Whether contexts record histograms and caller stats for the {@link Endpoint}, set on initialization.
+   */
+  boolean details;
+
+  /**
+   * Whether contexts aggregate by path within a {@link CallTree} and its caps, set on initialization.
+   */
+  boolean calltree;
+  int calltreeDepth;
+  int calltreeNodes;
+
+  /**
+   * Whether contexts hold the aggregated metering of names in a {@link Slab}, set on initialization.
+   */
+  boolean offheap;
+  private final ConcurrentLinkedQueue<ContextImpl> registry = new ConcurrentLinkedQueue<ContextImpl>();
+
+  /**
+   * The size of the {@link Ring} of recent firings of each context, zero if not enabled, set on initialization.
+   */
+  int ring;
+
+  /**
+   * The directory of the {@link Recorder} files of the contexts, <tt>null</tt> if not recording, set on initialization.
+   */
+  File record;
+  final ConcurrentLinkedQueue<Recorder> recorders = new ConcurrentLinkedQueue<Recorder>();
+
+  /**
+   * The rolling window aggregates of each name, <tt>null</tt> if not enabled, set when the {@link Snapshotter} starts.
+   */
+  volatile Windows windows;
+
+  /**
+   * The tail latency exemplars of each name, <tt>null</tt> if not enabled, set on initialization.
+   */
+  Exemplars exemplars;
+
+  /**
+   * The enforcement of the probe pairing contract, set on initialization.
+   */
+  Contract contract;
+  private final List<WeakReference<ContextImpl>> rings = new ArrayList<WeakReference<ContextImpl>>();
+
+  private final ThreadLocal<ContextImpl> contexts = new ThreadLocal<ContextImpl>() {
+    @Override
+    protected ContextImpl initialValue() {
+      return context(Thread.currentThread(), null, null);
+    }
+  };
+
+  public void init() {
+    final Properties props = new Properties();
+
+    final String config = System.getProperty(CONFIG);
+    if (config != null) {
+      try {
+        final InputStream in = new FileInputStream(config);
+        try {
+          props.load(in);
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("unable to load config: " + config, e);
+      }
+    }
+
+    for (Map.Entry<Object, Object> e : System.getProperties().entrySet()) {
+      if (e.getKey().toString().startsWith("probes.")) props.put(e.getKey(), e.getValue());
+    }
+
+    for (Map.Entry<Object, Object> e : props.entrySet()) {
+      environment.setString(names.parse(e.getKey().toString()), e.getValue().toString().trim());
+    }
+
+    names.apply(Rules.load(environment, names));
+    names.limit(environment.getInt(names.parse(Names.CAP), 0),
+                Names.caps(environment.getString(names.parse(Names.CAPS))),
+                counter(names.parse("probes.names.overflows")));
+
+    snapshots = Snapshotter.enabled(environment, names);
+    details = Endpoint.enabled(environment, names);
+
+    calltree = environment.getBoolean(names.parse(CallTree.ENABLED), false);
+    calltreeDepth = environment.getInt(names.parse(CallTree.DEPTH), 32);
+    calltreeNodes = environment.getInt(names.parse(CallTree.NODES), 10000);
+
+    offheap = environment.getBoolean(names.parse(Slab.ENABLED), false);
+
+    contract = new Contract(this);
+    exemplars = Exemplars.create(this);
+
+    final String dir = environment.getString(names.parse(Recorder.DIR));
+    if (dir != null) {
+      record = new File(dir);
+      Recorder.start(this);
+    }
+
+    ring = environment.getInt(names.parse(Ring.SIZE), 0);
+    final String signal = environment.getString(names.parse(Ring.SIGNAL));
+    if (ring > 0 && signal != null) Ring.install(this, signal);
+  }
+
+  /**
+   * Returns the current provider runtime stack snapshot loading the initial stack on first use.
+   * A failure to load the configured extensions is logged once and leaves an empty stack, and a failure to start the snapshotter
+   * is logged once and leaves the stack without snapshots, so that a configuration error does not escape into the application
+   * threads creating contexts.
+   */
+  Extensions stack() {
+    Extensions e = extensions;
+    if (e == null) {
+      synchronized (this) {
+        e = extensions;
+        if (e == null) {
+          try {
+            e = Extensions.load(this);
+          } catch (Throwable t) {
+            LOGGER.log(Level.WARNING, "Unable to load the probes extensions, metering is disabled", t);
+            e = EMPTY;
+          }
+
+          try {
+            Snapshotter.start(this);
+          } catch (Throwable t) {
+            LOGGER.log(Level.WARNING, "Unable to start the snapshotter, snapshots are disabled", t);
+            snapshots = false;
+          }
+          // published once snapshots are settled so that no context records changes a snapshot never reads
+          extensions = e;
+        }
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Publishes a new provider runtime stack snapshot, calls are serialized by the caller synchronizing on the provider.
+   */
+  void publish(Extensions stack) {
+    extensions = stack;
+  }
+
+  /**
+   * Creates a context of the thread, or of an actor of a simulation run on the thread, registering it for snapshots and dumps.
+   */
+  ContextImpl context(Thread thread, Simulation simulation, String name) {
+    final ContextImpl context = new ContextImpl(this, thread, stack(), simulation, name);
+    if (snapshots) registry.add(context);
+    if (context.ring != null) register(context);
+    return context;
+  }
+
+  /**
+   * Binds the context returned to the calling thread by {@link #context()}, returning the context previously bound.
+   */
+  ContextImpl bind(ContextImpl context) {
+    final ContextImpl previous = contexts.get();
+    contexts.set(context);
+    return previous;
+  }
+
+  private void register(ContextImpl context) {
+    synchronized (rings) {
+      // contexts are held weakly and so cleared once their thread has terminated
+      if (rings.size() >= 64 && Integer.bitCount(rings.size()) == 1) {
+        for (Iterator<WeakReference<ContextImpl>> it = rings.iterator(); it.hasNext();) {
+          if (it.next().get() == null) it.remove();
+        }
+      }
+      rings.add(new WeakReference<ContextImpl>(context));
+    }
+  }
+
+  /**
+   * Writes the recent firings of all live contexts.
+   */
+  void dump(Appendable out) throws IOException {
+    final List<ContextImpl> contexts = new ArrayList<ContextImpl>();
+    synchronized (rings) {
+      for (WeakReference<ContextImpl> ref : rings) {
+        final ContextImpl context = ref.get();
+        if (context != null) contexts.add(context);
+      }
+    }
+
+    for (ContextImpl context : contexts) {
+      out.append("context ").append(context.getName()).append('\n');
+      context.dump(out);
+    }
+  }
+
+  /**
+   * Returns the contexts registered when snapshots are enabled, with the iterator supporting removal.
+   */
+  Iterator<ContextImpl> contexts() {
+    return registry.iterator();
+  }
+
+  public Probes.Context context() {
+    return contexts.get();
+  }
+
+  public Probes.Name name(String value) {
+    return names.name(value);
+  }
+
+  public Probes.Name name(Class cls) {
+    return classes.get(cls);
+  }
+
+  public Probes.Name name(Method method) {
+    return classes.get(method.getDeclaringClass()).name(method.getName());
+  }
+
+  public Probes.Meter meter(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+    return meters.get(name);
+  }
+
+  public Probes.Name parse(String value) {
+    return names.parse(value);
+  }
+
+  public Probes.Label label(String value) {
+    if (value == null) throw new NullPointerException("value");
+    return LabelImpl.get(value);
+  }
+
+  public Probes.Counter counter(Probes.Name name) {
+    if (name == null) throw new NullPointerException("name");
+
+    GlobalCounterImpl counter = counters.get(name);
+    if (counter == null) {
+      final GlobalCounterImpl created = new GlobalCounterImpl((NameImpl) name, stripes);
+      counter = counters.putIfAbsent(name, created);
+      if (counter == null) counter = created;
+    }
+    return counter;
+  }
+
+  /**
+   * Registers a meter returning the existing meter if one is already registered under the name.
+   */
+  synchronized MeterImpl register(NameImpl name, ProbesMeasureFactory factory) {
+    MeterImpl meter = meters.get(name);
+    if (meter != null) return meter;
+
+    final MeterImpl[] current = table;
+    final MeterImpl[] update = new MeterImpl[current.length + 1];
+    System.arraycopy(current, 0, update, 0, current.length);
+    update[current.length] = meter = new MeterImpl(name, current.length, factory);
+    table = update;
+
+    meters.put(name, meter);
+
+    return meter;
+  }
+
+  MeterImpl meterAt(int index) {
+    return table[index];
+  }
+
+  int meterCount() {
+    return table.length;
+  }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.spi.ProbesProvider;
+import org.jinspired.probes.spi.ProbesProviderFactory;
+
+/**
+ * The factory for the barebones reference implementation of the Open API.<p>
+ * To use set the system property <tt>org.jinspired.probes.spi.factory</tt> to <tt>org.jinspired.probes.impl.ProviderFactory</tt>.
+ */
+public final class ProviderFactory implements ProbesProviderFactory {
+
+  public ProbesProvider create() {
+    return new Provider();
+  }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.interceptor.ProbesInterceptorFactory;
+import org.jinspired.probes.measure.ProbesMeasureFactory;
+import org.jinspired.probes.strategy.ProbesStrategyFactory;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The runtime stack of meters, strategies and interceptors of the reference implementation.<p>
+ * Layers can be added and removed at runtime, for example to switch on deeper metering during an incident and off again afterwards.
+ * Each change publishes a new immutable snapshot of the stack which a context picks up on its next probe firing with a single volatile read.
+ * Probes already fired end against the layers they began with. Layers added at runtime are placed after those already on the stack.
+ *
+ * @see Extensions
+ */
+public final class ProviderStack {
+
+  private final Provider provider;
+
+  private ProviderStack(Provider provider) {
+    this.provider = provider;
+  }
+
+  /**
+   * Returns the runtime stack of the installed reference implementation.
+   *
+   * @throws IllegalStateException if the installed provider is not the reference implementation
+   */
+  public static ProviderStack get() {
+    final Probes.Context context = Probes.context();
+    if (!(context instanceof ContextImpl)) throw new IllegalStateException("reference implementation not installed");
+    return new ProviderStack(((ContextImpl) context).provider);
+  }
+
+  /**
+   * Adds a built-in meter, or one configured with a <tt>probes.meter.&lt;name&gt;.factory</tt> value, to the stack.
+   *
+   * @return The meter which is registered on first use
+   */
+  public Probes.Meter add(Probes.Name meter) {
+    if (meter == null) throw new NullPointerException("meter");
+
+    synchronized (provider) {
+      final Probes.Meter existing = provider.meter(meter);
+      return add(existing != null ? (MeterImpl) existing : provider.register((NameImpl) meter, Extensions.measure(provider, meter.toString())));
+    }
+  }
+
+  /**
+   * Adds a meter with the measure factory to the stack, with an already registered meter keeping its original factory.
+   *
+   * @return The meter registered under the name
+   */
+  public Probes.Meter add(Probes.Name meter, ProbesMeasureFactory factory) {
+    if (meter == null) throw new NullPointerException("meter");
+    if (factory == null) throw new NullPointerException("factory");
+
+    synchronized (provider) {
+      final Probes.Meter existing = provider.meter(meter);
+      if (existing == null) factory.init(provider.environment);
+      return add(existing != null ? (MeterImpl) existing : provider.register((NameImpl) meter, factory));
+    }
+  }
+
+  private MeterImpl add(MeterImpl meter) {
+    final Extensions stack = provider.stack();
+    if (Extensions.indexOf(stack.meters, meter) < 0) provider.publish(stack.with(meter));
+    return meter;
+  }
+
+  /**
+   * Removes the meter from the stack, its aggregated metering is retained.
+   *
+   * @return <tt>true</tt> if the meter was on the stack
+   */
+  public boolean remove(Probes.Name meter) {
+    if (meter == null) throw new NullPointerException("meter");
+
+    synchronized (provider) {
+      final MeterImpl m = (MeterImpl) provider.meter(meter);
+      final Extensions stack = provider.stack();
+      if (m == null || Extensions.indexOf(stack.meters, m) < 0) return false;
+
+      provider.publish(stack.without(m));
+      return true;
+    }
+  }
+
+  /**
+   * Replaces the name include and exclude rules, each a comma separated list of patterns or <tt>null</tt>,
+   * storing them in the global environment and re-evaluating whether each name is disabled.
+   *
+   * @throws IllegalStateException if a pattern is malformed
+   * @see Rules
+   */
+  public void setRules(String include, String exclude) {
+    final Rules rules = Rules.compile(include, exclude);
+
+    synchronized (provider) {
+      provider.environment.setString(provider.names.parse(Rules.INCLUDE), include);
+      provider.environment.setString(provider.names.parse(Rules.EXCLUDE), exclude);
+      provider.names.apply(rules);
+    }
+  }
+
+  /**
+   * Associates the label with the name, for use by extensions such as marking a name as a hotspot.
+   *
+   * @return <tt>false</tt> if the name was already labeled
+   */
+  public boolean label(Probes.Name name, Probes.Label label) {
+    if (name == null) throw new NullPointerException("name");
+    if (label == null) throw new NullPointerException("label");
+
+    return ((NameImpl) name).label((LabelImpl) label);
+  }
+
+  /**
+   * Removes the association of the label with the name.
+   *
+   * @return <tt>false</tt> if the name was not labeled
+   */
+  public boolean unlabel(Probes.Name name, Probes.Label label) {
+    if (name == null) throw new NullPointerException("name");
+    if (label == null) throw new NullPointerException("label");
+
+    return ((NameImpl) name).unlabel((LabelImpl) label);
+  }
+
+  /**
+   * Returns the names associated with the label read from the label's bitmap rather than by scanning all names.
+   */
+  public Iterator<Probes.Name> names(Probes.Label label) {
+    if (label == null) throw new NullPointerException("label");
+
+    final List<NameImpl> names = provider.names.labeled((LabelImpl) label);
+    return new ArrayIterator<Probes.Name>(names.toArray());
+  }
+
+  /**
+   * Returns the metering of the name by the meter across all contexts within the rolling window of the length in seconds,
+   * as of the last snapshot, for extensions reacting to current rather than cumulative behavior.
+   *
+   * @return The change within the window, with zero values if the name has not changed within it
+   * @throws IllegalStateException if rolling windows are not enabled
+   * @throws IllegalArgumentException if a window of the length is not configured
+   * @see Windows
+   */
+  public Probes.Change window(Probes.Name name, Probes.Meter meter, long seconds) {
+    if (name == null) throw new NullPointerException("name");
+    if (meter == null) throw new NullPointerException("meter");
+
+    final Windows windows = provider.windows;
+    if (windows == null) throw new IllegalStateException(Windows.WINDOWS + " not set");
+
+    final int window = windows.index(seconds);
+    if (window < 0) throw new IllegalArgumentException("window: " + seconds);
+
+    final MeterImpl m = (MeterImpl) meter;
+    final long[] values = windows.values(((NameImpl) name).id, window, System.currentTimeMillis());
+    return new ChangeImpl(m.name, Table.value(values, m.index, Stats.COUNT), Table.value(values, m.index, Stats.TOTAL),
+                          Table.value(values, m.index, Stats.INHERENT));
+  }
+
+  /**
+   * Initializes the strategy factory with the global environment and adds it to the end of the stack.
+   *
+   * @return <tt>false</tt> if the factory was already on the stack
+   */
+  public boolean add(ProbesStrategyFactory strategy) {
+    if (strategy == null) throw new NullPointerException("strategy");
+
+    synchronized (provider) {
+      final Extensions stack = provider.stack();
+      if (Extensions.indexOf(stack.strategies, strategy) >= 0) return false;
+
+      strategy.init(provider.environment);
+      provider.publish(stack.with(strategy));
+      return true;
+    }
+  }
+
+  /**
+   * Removes the strategy factory from the stack.
+   *
+   * @return <tt>true</tt> if the factory was on the stack
+   */
+  public boolean remove(ProbesStrategyFactory strategy) {
+    if (strategy == null) throw new NullPointerException("strategy");
+
+    synchronized (provider) {
+      final Extensions stack = provider.stack();
+      if (Extensions.indexOf(stack.strategies, strategy) < 0) return false;
+
+      provider.publish(stack.without(strategy));
+      return true;
+    }
+  }
+
+  /**
+   * Initializes the interceptor factory with the global environment and adds it to the end of the stack.
+   *
+   * @return <tt>false</tt> if the factory was already on the stack
+   */
+  public boolean add(ProbesInterceptorFactory interceptor) {
+    if (interceptor == null) throw new NullPointerException("interceptor");
+
+    synchronized (provider) {
+      final Extensions stack = provider.stack();
+      if (Extensions.indexOf(stack.interceptors, interceptor) >= 0) return false;
+
+      interceptor.init(provider.environment);
+      provider.publish(stack.with(interceptor));
+      return true;
+    }
+  }
+
+  /**
+   * Removes the interceptor factory from the stack.
+   *
+   * @return <tt>true</tt> if the factory was on the stack
+   */
+  public boolean remove(ProbesInterceptorFactory interceptor) {
+    if (interceptor == null) throw new NullPointerException("interceptor");
+
+    synchronized (provider) {
+      final Extensions stack = provider.stack();
+      if (Extensions.indexOf(stack.interceptors, interceptor) < 0) return false;
+
+      provider.publish(stack.without(interceptor));
+      return true;
+    }
+  }
+
+}
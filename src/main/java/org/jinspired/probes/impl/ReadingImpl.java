@@ -0,0 +1,58 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+/**
+ * The reference implementation of {@link Probes.Reading Reading} which is a view over the readings held by a probe.
+ */
+final class ReadingImpl implements Probes.Reading {
+
+  private final MeterImpl meter;
+  private final long[] readings;
+  private final int offset;
+
+  ReadingImpl(MeterImpl meter, long[] readings, int offset) {
+    this.meter = meter;
+    this.readings = readings;
+    this.offset = offset;
+  }
+
+  public Probes.Name getName() {
+    return meter.name;
+  }
+
+  public long getLow() {
+    return readings[offset + ProbeImpl.LOW];
+  }
+
+  public long getHigh() {
+    return readings[offset + ProbeImpl.HIGH];
+  }
+
+  public long getDelta() {
+    return getHigh() - getLow();
+  }
+
+  @Override
+  public String toString() {
+    return meter.name + "[low=" + getLow() + ", high=" + getHigh() + "]";
+  }
+
+}
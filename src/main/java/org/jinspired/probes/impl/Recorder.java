@@ -0,0 +1,296 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The recorder of the metered probe firings ended within a context to a file read by the {@link RecordingAnalyzer}.<p>
+ * When <tt>probes.record.dir</tt> is set each context writes to its own file named after the process and thread.
+ * A file is a sequence of blocks, each a magic int and the length of its payload followed by little endian entries:
+ * <pre>
+ * NAME   1  int id, short length, the UTF-8 bytes of the name
+ * METER  2  short index, short length, the UTF-8 bytes of the meter name
+ * PATH   3  int id, int parent id, int name id
+ * EVENT  4  int name id, int path id, int count, byte meters, for each meter short index, long total, long inherent total
+ * </pre>
+ * A block defines the names, meters and paths its entries refer to before they are referred to, so each block can be read
+ * on its own. Ids are local to the file. Paths are the nodes of the context's {@link CallTree} in call tree mode,
+ * otherwise, or when beyond the tree caps, the path of an event is the root path zero.
+ * Blocks are written when full and every <tt>probes.record.flush</tt> milliseconds (default <tt>1000</tt>) by a background thread,
+ * so recording is synchronized on the recorder though only ever contended by a flush.
+ */
+final class Recorder {
+
+  static final String DIR = "probes.record.dir";
+  static final String FLUSH = "probes.record.flush";
+
+  static final int MAGIC = 0x50524543;
+  static final int BLOCK = 1 << 18;
+
+  static final byte NAME = 1;
+  static final byte METER = 2;
+  static final byte PATH = 3;
+  static final byte EVENT = 4;
+
+  private static final Logger LOGGER = Logger.getLogger(Recorder.class.getName());
+
+  final Thread thread;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+
+  /**
+   * The block in which each name, path and meter was last defined.
+   */
+  private int[] names = new int[1024];
+  private int[] paths = new int[1024];
+  private int[] meters = new int[16];
+  private int block = 1;
+
+  private Recorder(FileChannel channel, Thread thread) {
+    this.channel = channel;
+    this.thread = thread;
+    open();
+  }
+
+  /**
+   * Returns the recorder of the context's thread registered with the provider, or <tt>null</tt> if recording is not enabled.
+   */
+  static Recorder create(Provider provider, Thread thread) {
+    final File dir = provider.record;
+    if (dir == null) return null;
+
+    final String process = ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9_.-]", "_");
+    final File file = new File(dir, process + "-" + thread.getId() + ".rec");
+    try {
+      final Recorder recorder = new Recorder(new FileOutputStream(file).getChannel(), thread);
+      provider.recorders.add(recorder);
+      return recorder;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to record to: " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Starts the background thread flushing the recorders and closing those of terminated threads, with all closed on shutdown.
+   */
+  static void start(final Provider provider) {
+    final long interval = provider.environment.getLong(provider.names.parse(FLUSH), 1000L);
+    if (interval <= 0L) throw new IllegalStateException(FLUSH + ": " + interval);
+    if (!provider.record.isDirectory() && !provider.record.mkdirs()) throw new IllegalStateException(DIR + ": " + provider.record);
+
+    final Thread thread = new Thread("probes-recorder") {
+      @Override
+      public void run() {
+        while (!isInterrupted()) {
+          try {
+            Thread.sleep(interval);
+          } catch (InterruptedException e) {
+            break;
+          }
+          flush(provider, false);
+        }
+        flush(provider, true);
+      }
+    };
+    thread.setDaemon(true);
+    thread.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread("probes-recorder-shutdown") {
+      @Override
+      public void run() {
+        thread.interrupt();
+        try {
+          thread.join();
+        } catch (InterruptedException ignored) {
+          // exiting anyway
+        }
+      }
+    });
+  }
+
+  private static void flush(Provider provider, boolean all) {
+    for (Iterator<Recorder> it = provider.recorders.iterator(); it.hasNext();) {
+      final Recorder recorder = it.next();
+      final boolean close = all || !recorder.thread.isAlive();
+      try {
+        recorder.flush(close);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Unable to write recording of: " + recorder.thread.getName(), e);
+      }
+      if (close) it.remove();
+    }
+  }
+
+  private void open() {
+    buffer.clear();
+    buffer.putInt(MAGIC);
+    buffer.putInt(0);
+  }
+
+  /**
+   * Appends the event of an ended probe, writing the block and appending to a new block if full.
+   */
+  synchronized void record(ProbeImpl probe, int count) {
+    if (!channel.isOpen()) return;
+
+    final int mark = buffer.position();
+    try {
+      event(probe, count);
+    } catch (BufferOverflowException e) {
+      buffer.position(mark);
+      // the definitions rolled back are still marked as written, so the retry starts a new block number even if none is written
+      block++;
+      try {
+        write();
+        event(probe, count);
+      } catch (BufferOverflowException x) {
+        // the event along with its definitions is larger than a block so is dropped with the definitions repeated
+        block++;
+        open();
+      } catch (IOException x) {
+        LOGGER.log(Level.WARNING, "Unable to write recording of: " + thread.getName(), x);
+        close();
+      }
+    }
+  }
+
+  private void event(ProbeImpl probe, int count) {
+    final CallTree.Node node = probe.node;
+    if (node != null) path(node);
+    name(probe.name);
+
+    final MeterImpl[] ms = probe.layers.meters;
+    for (MeterImpl m : ms) meter(m);
+
+    buffer.put(EVENT);
+    buffer.putInt(probe.name.id);
+    buffer.putInt(node != null ? node.id : 0);
+    buffer.putInt(count);
+    buffer.put((byte) ms.length);
+
+    final long[] r = probe.readings;
+    for (int i = 0, o = 0; i < ms.length; i++, o += ProbeImpl.FIELDS) {
+      final long delta = r[o + ProbeImpl.HIGH] - r[o + ProbeImpl.LOW];
+      buffer.putShort((short) ms[i].index);
+      buffer.putLong(delta);
+      buffer.putLong(delta - r[o + ProbeImpl.INNER]);
+    }
+  }
+
+  private void path(CallTree.Node node) {
+    if (node.id == 0) return;
+    if (node.id < paths.length && paths[node.id] == block) return;
+
+    path(node.parent);
+    name(node.name);
+
+    buffer.put(PATH);
+    buffer.putInt(node.id);
+    buffer.putInt(node.parent.id);
+    buffer.putInt(node.name.id);
+
+    if (node.id >= paths.length) paths = grow(paths, node.id);
+    paths[node.id] = block;
+  }
+
+  private void name(NameImpl name) {
+    if (name.id < names.length && names[name.id] == block) return;
+
+    buffer.put(NAME);
+    buffer.putInt(name.id);
+    string(name.toString());
+
+    if (name.id >= names.length) names = grow(names, name.id);
+    names[name.id] = block;
+  }
+
+  private void meter(MeterImpl meter) {
+    if (meter.index < meters.length && meters[meter.index] == block) return;
+
+    buffer.put(METER);
+    buffer.putShort((short) meter.index);
+    string(meter.name.toString());
+
+    if (meter.index >= meters.length) meters = grow(meters, meter.index);
+    meters[meter.index] = block;
+  }
+
+  private void string(String value) {
+    final byte[] bytes;
+    try {
+      bytes = value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    buffer.putShort((short) Math.min(bytes.length, Short.MAX_VALUE));
+    buffer.put(bytes, 0, Math.min(bytes.length, Short.MAX_VALUE));
+  }
+
+  private static int[] grow(int[] values, int index) {
+    final int[] grown = new int[Math.max(values.length << 1, index + 1)];
+    System.arraycopy(values, 0, grown, 0, values.length);
+    return grown;
+  }
+
+  /**
+   * Writes the current block if it holds any entries and starts a new block.
+   */
+  private void write() throws IOException {
+    if (buffer.position() == 8) return;
+
+    buffer.putInt(4, buffer.position() - 8);
+    buffer.flip();
+    while (buffer.hasRemaining()) channel.write(buffer);
+
+    block++;
+    open();
+  }
+
+  synchronized void flush(boolean close) throws IOException {
+    if (!channel.isOpen()) return;
+
+    try {
+      write();
+    } finally {
+      if (close) close();
+    }
+  }
+
+  private void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to close recording of: " + thread.getName(), e);
+    }
+  }
+
+}
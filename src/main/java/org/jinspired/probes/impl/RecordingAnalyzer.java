@@ -0,0 +1,429 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * An offline tool aggregating the {@link Recorder} files of any number of threads and processes by name, with a histogram of each
+ * meter, and by call tree path.<p>
+ * The files are split into segments of whole blocks, each mapped into memory and parsed by a task on a pool of threads. The ids within
+ * a block are resolved to the values of the names and meters it defines, so the same name recorded by different processes is
+ * aggregated as one. Each task yields a partial result merged, by name and path value, with the results of the other tasks as they complete.
+ * <pre>
+ * java -cp probes-api.jar org.jinspired.probes.impl.RecordingAnalyzer [-threads n] [-top n] [-meter name] [-stacks file] files or dirs...
+ * </pre>
+ * The names are written to standard output as JSON lines ordered by the total of the meter, the first recorded by default,
+ * with the merged call tree written as {@link CollapsedStacks} of inherent totals when a stacks file is given.
+ */
+public final class RecordingAnalyzer {
+
+  private static final long SEGMENT = 64L << 20;
+
+  private final int threads;
+
+  RecordingAnalyzer(int threads) {
+    this.threads = threads;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    int top = Integer.MAX_VALUE;
+    String meter = null;
+    File stacks = null;
+    final List<File> files = new ArrayList<File>();
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-threads") && i + 1 < args.length) threads = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-top") && i + 1 < args.length) top = Integer.parseInt(args[++i]);
+      else if (args[i].equals("-meter") && i + 1 < args.length) meter = args[++i];
+      else if (args[i].equals("-stacks") && i + 1 < args.length) stacks = new File(args[++i]);
+      else add(files, new File(args[i]));
+    }
+
+    if (files.isEmpty()) {
+      System.err.println("usage: RecordingAnalyzer [-threads n] [-top n] [-meter name] [-stacks file] files or dirs...");
+      System.exit(2);
+    }
+
+    final Result result = new RecordingAnalyzer(threads).analyze(files);
+    if (meter == null) meter = result.meters.isEmpty() ? null : result.meters.get(0);
+    if (meter == null) return;
+
+    final Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+    try {
+      result.write(out, meter, top);
+    } finally {
+      out.flush();
+    }
+
+    if (stacks != null) {
+      final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(stacks), "UTF-8"));
+      try {
+        result.root.stacks(w, new StringBuilder(), meter);
+      } finally {
+        w.close();
+      }
+    }
+  }
+
+  private static void add(List<File> files, File file) {
+    final File[] children = file.listFiles();
+    if (children == null) {
+      files.add(file);
+      return;
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory() || child.getName().endsWith(".rec")) add(files, child);
+    }
+  }
+
+  /**
+   * Returns the result of all the recordings merged from the results of the segments parsed in parallel.
+   */
+  Result analyze(List<File> files) throws IOException, InterruptedException, ExecutionException {
+    final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        final Thread thread = new Thread(r, "probes-analyzer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    final List<FileChannel> channels = new ArrayList<FileChannel>();
+    try {
+      final CompletionService<Result> completion = new ExecutorCompletionService<Result>(executor);
+      int tasks = 0;
+      for (File file : files) {
+        final FileChannel channel = new FileInputStream(file).getChannel();
+        channels.add(channel);
+        for (long[] segment : segments(file, channel)) {
+          completion.submit(new Segment(channel, segment[0], segment[1]));
+          tasks++;
+        }
+      }
+
+      final Result result = new Result();
+      for (int i = 0; i < tasks; i++) result.merge(completion.take().get());
+      return result;
+    } finally {
+      executor.shutdownNow();
+      for (FileChannel channel : channels) channel.close();
+    }
+  }
+
+  /**
+   * Returns the (offset, length) of the segments of whole blocks of the file, reading only the block headers.
+   */
+  private static List<long[]> segments(File file, FileChannel channel) throws IOException {
+    final List<long[]> segments = new ArrayList<long[]>();
+    final ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    final long size = channel.size();
+
+    long start = 0L;
+    long offset = 0L;
+    while (offset + 8 <= size) {
+      header.clear();
+      while (header.hasRemaining() && channel.read(header, offset + header.position()) > 0) {
+        // read the header fully
+      }
+      if (header.getInt(0) != Recorder.MAGIC) throw new IOException("corrupt recording: " + file + " at: " + offset);
+
+      final long end = offset + 8 + header.getInt(4);
+      // a block written partially when the process terminated is ignored
+      if (end > size) break;
+      if (end - start > SEGMENT && offset > start) {
+        segments.add(new long[] {start, offset - start});
+        start = offset;
+      }
+      offset = end;
+    }
+    if (offset > start) segments.add(new long[] {start, offset - start});
+
+    return segments;
+  }
+
+  /**
+   * The task parsing a segment of whole blocks of a file.
+   */
+  private static final class Segment implements Callable<Result> {
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+
+    Segment(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public Result call() throws IOException {
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+      final Result result = new Result();
+      final Map<Integer, String> names = new HashMap<Integer, String>();
+      final Map<Integer, String> meters = new HashMap<Integer, String>();
+      final Map<Integer, Node> paths = new HashMap<Integer, Node>();
+
+      while (buffer.remaining() >= 8) {
+        buffer.getInt();
+        final int end = buffer.getInt() + buffer.position();
+
+        names.clear();
+        meters.clear();
+        paths.clear();
+        paths.put(0, result.root);
+
+        while (buffer.position() < end) {
+          final byte tag = buffer.get();
+          if (tag == Recorder.NAME) {
+            names.put(buffer.getInt(), string(buffer));
+          } else if (tag == Recorder.METER) {
+            meters.put((int) buffer.getShort(), string(buffer));
+          } else if (tag == Recorder.PATH) {
+            final int id = buffer.getInt();
+            final Node parent = paths.get(buffer.getInt());
+            paths.put(id, parent.child(names.get(buffer.getInt())));
+          } else if (tag == Recorder.EVENT) {
+            final String name = names.get(buffer.getInt());
+            final int path = buffer.getInt();
+            final long count = buffer.getInt();
+            final Aggregate aggregate = result.aggregate(name);
+            final Node node = path != 0 ? paths.get(path) : null;
+
+            for (int i = 0, n = buffer.get(); i < n; i++) {
+              final String meter = meters.get((int) buffer.getShort());
+              final long total = buffer.getLong();
+              final long inherent = buffer.getLong();
+
+              result.meter(meter);
+              aggregate.add(meter, count, total, inherent, true);
+              if (node != null) node.aggregate().add(meter, count, total, inherent, false);
+            }
+          } else {
+            throw new IOException("corrupt recording at: " + (offset + buffer.position() - 1));
+          }
+        }
+      }
+      return result;
+    }
+
+    private static String string(ByteBuffer buffer) throws UnsupportedEncodingException {
+      final byte[] bytes = new byte[buffer.getShort()];
+      buffer.get(bytes);
+      return new String(bytes, "UTF-8");
+    }
+
+  }
+
+  /**
+   * The aggregates by name and by path of one or more segments.
+   */
+  static final class Result {
+
+    final Map<String, Aggregate> names = new HashMap<String, Aggregate>();
+    final List<String> meters = new ArrayList<String>();
+    final Node root = new Node(null);
+
+    Aggregate aggregate(String name) {
+      Aggregate aggregate = names.get(name);
+      if (aggregate == null) names.put(name, aggregate = new Aggregate());
+      return aggregate;
+    }
+
+    void meter(String meter) {
+      if (!meters.contains(meter)) meters.add(meter);
+    }
+
+    void merge(Result other) {
+      for (Map.Entry<String, Aggregate> e : other.names.entrySet()) aggregate(e.getKey()).merge(e.getValue());
+      for (String meter : other.meters) meter(meter);
+      root.merge(other.root);
+    }
+
+    void write(Writer out, final String meter, int top) throws IOException {
+      final List<Map.Entry<String, Aggregate>> entries = new ArrayList<Map.Entry<String, Aggregate>>(names.entrySet());
+      Collections.sort(entries, new Comparator<Map.Entry<String, Aggregate>>() {
+        public int compare(Map.Entry<String, Aggregate> a, Map.Entry<String, Aggregate> b) {
+          final long x = a.getValue().value(meter, Stats.TOTAL);
+          final long y = b.getValue().value(meter, Stats.TOTAL);
+          return x < y ? 1 : x > y ? -1 : 0;
+        }
+      });
+
+      for (int i = 0; i < entries.size() && i < top; i++) {
+        final Aggregate a = entries.get(i).getValue();
+        final long[] histogram = a.histogram(meter);
+
+        out.write("{\"name\":");
+        Json.string(out, entries.get(i).getKey());
+        out.write(",\"meter\":");
+        Json.string(out, meter);
+        out.write(",\"count\":" + a.value(meter, Stats.COUNT));
+        out.write(",\"total\":" + a.value(meter, Stats.TOTAL));
+        out.write(",\"inherent\":" + a.value(meter, Stats.INHERENT));
+        out.write(",\"p50\":" + Histogram.percentile(histogram, 0.5D));
+        out.write(",\"p99\":" + Histogram.percentile(histogram, 0.99D));
+        out.write("}\n");
+      }
+    }
+  }
+
+  /**
+   * The (count, total, inherent total) values and the histogram of the average delta of the firings of each meter.
+   */
+  static final class Aggregate {
+
+    private String[] meters = new String[0];
+    private long[][] values = new long[0][];
+    private long[][] histograms = new long[0][];
+
+    private int index(String meter) {
+      for (int i = 0; i < meters.length; i++) {
+        if (meters[i].equals(meter)) return i;
+      }
+
+      final int n = meters.length;
+      meters = Arrays.copyOf(meters, n + 1);
+      values = Arrays.copyOf(values, n + 1);
+      histograms = Arrays.copyOf(histograms, n + 1);
+      meters[n] = meter;
+      values[n] = new long[Stats.FIELDS];
+      return n;
+    }
+
+    void add(String meter, long count, long total, long inherent, boolean histogram) {
+      final int i = index(meter);
+      values[i][Stats.COUNT] += count;
+      values[i][Stats.TOTAL] += total;
+      values[i][Stats.INHERENT] += inherent;
+      if (histogram && count > 0) histograms[i] = Histogram.record(histograms[i], total / count, count);
+    }
+
+    long value(String meter, int field) {
+      for (int i = 0; i < meters.length; i++) {
+        if (meters[i].equals(meter)) return values[i][field];
+      }
+      return 0L;
+    }
+
+    long[] histogram(String meter) {
+      for (int i = 0; i < meters.length; i++) {
+        if (meters[i].equals(meter)) return histograms[i];
+      }
+      return null;
+    }
+
+    void merge(Aggregate other) {
+      for (int j = 0; j < other.meters.length; j++) {
+        final int i = index(other.meters[j]);
+        for (int f = 0; f < Stats.FIELDS; f++) values[i][f] += other.values[j][f];
+
+        final long[] h = other.histograms[j];
+        if (h == null) continue;
+        if (histograms[i] == null || histograms[i].length < h.length) {
+          histograms[i] = histograms[i] == null ? new long[h.length] : Stats.grow(histograms[i], h.length);
+        }
+        for (int k = 0; k < h.length; k++) histograms[i][k] += h[k];
+      }
+    }
+
+  }
+
+  /**
+   * A node of the call tree keyed by the values of the names of its path.
+   */
+  static final class Node {
+
+    final String name;
+    private Map<String, Node> children;
+    private Aggregate aggregate;
+
+    Node(String name) {
+      this.name = name;
+    }
+
+    Node child(String name) {
+      if (children == null) children = new HashMap<String, Node>();
+
+      Node child = children.get(name);
+      if (child == null) children.put(name, child = new Node(name));
+      return child;
+    }
+
+    Aggregate aggregate() {
+      return aggregate != null ? aggregate : (aggregate = new Aggregate());
+    }
+
+    void merge(Node other) {
+      if (other.aggregate != null) aggregate().merge(other.aggregate);
+      if (other.children == null) return;
+
+      for (Node c : other.children.values()) child(c.name).merge(c);
+    }
+
+    /**
+     * Writes a collapsed stack line for each path with an inherent total for the meter.
+     */
+    void stacks(Writer out, StringBuilder path, String meter) throws IOException {
+      final int length = path.length();
+      if (name != null) {
+        if (length > 0) path.append(';');
+        path.append(name);
+
+        final long value = aggregate != null ? aggregate.value(meter, Stats.INHERENT) : 0L;
+        if (value > 0L) out.write(path + " " + value + "\n");
+      }
+
+      if (children != null) {
+        for (Node c : children.values()) c.stacks(out, path, meter);
+      }
+      path.setLength(length);
+    }
+
+  }
+
+}
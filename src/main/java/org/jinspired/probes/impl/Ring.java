@@ -0,0 +1,128 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The fixed size ring buffer of the most recent metered probe firings ended within a context.<p>
+ * Each entry holds the name id, the stack depth, the end time in nanoseconds and the deltas of up to {@link #width} meters
+ * in primitive arrays, along with the meters of the layers the probe began with. Recording overwrites the oldest entry in place
+ * without locking or allocating. A dump from another thread, such as on a signal, can see an entry being overwritten.
+ */
+final class Ring {
+
+  static final String SIZE = "probes.ring.size";
+  static final String SIGNAL = "probes.ring.signal";
+
+  private final int mask;
+  private final int width;
+
+  private final int[] ids;
+  private final int[] depths;
+  private final long[] times;
+  private final long[] deltas;
+  private final MeterImpl[][] meters;
+
+  private long next;
+
+  Ring(int size, int width) {
+    int capacity = 1;
+    while (capacity < size) capacity <<= 1;
+
+    this.mask = capacity - 1;
+    this.width = Math.max(width, 1);
+    this.ids = new int[capacity];
+    this.depths = new int[capacity];
+    this.times = new long[capacity];
+    this.deltas = new long[capacity * this.width];
+    this.meters = new MeterImpl[capacity][];
+  }
+
+  /**
+   * Installs a handler writing the recent firings of all contexts to standard error on the named signal, such as <tt>USR2</tt>.
+   * The handler relies on the <tt>sun.misc.Signal</tt> class and so is installed reflectively, with a warning logged if not available.
+   */
+  static void install(final Provider provider, String signal) {
+    try {
+      final Class<?> type = Class.forName("sun.misc.Signal");
+      final Class<?> handler = Class.forName("sun.misc.SignalHandler");
+
+      final Object proxy = Proxy.newProxyInstance(Ring.class.getClassLoader(), new Class<?>[] {handler}, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (!method.getName().equals("handle")) return method.invoke(this, args);
+
+          final StringBuilder sb = new StringBuilder(4096);
+          provider.dump(sb);
+          System.err.print(sb);
+          return null;
+        }
+      });
+
+      type.getMethod("handle", type, handler).invoke(null, type.getConstructor(String.class).newInstance(signal), proxy);
+    } catch (Exception e) {
+      Logger.getLogger(Ring.class.getName()).log(Level.WARNING, "Unable to install the signal handler: " + signal, e);
+    }
+  }
+
+  void record(ProbeImpl probe) {
+    final int i = (int) next++ & mask;
+
+    ids[i] = probe.name.id;
+    depths[i] = probe.depth;
+    times[i] = System.nanoTime();
+
+    final MeterImpl[] m = probe.layers.meters;
+    meters[i] = m;
+
+    final long[] r = probe.readings;
+    final int n = Math.min(m.length, width);
+    for (int j = 0, o = i * width; j < n; j++) {
+      deltas[o + j] = r[j * ProbeImpl.FIELDS + ProbeImpl.HIGH] - r[j * ProbeImpl.FIELDS + ProbeImpl.LOW];
+    }
+  }
+
+  /**
+   * Writes a line for each entry, oldest first, with the time elapsed since the firing ended in microseconds.
+   */
+  void dump(Appendable out, Names names) throws IOException {
+    final long now = System.nanoTime();
+    final long last = next;
+
+    for (long k = Math.max(0L, last - (mask + 1)); k < last; k++) {
+      final int i = (int) k & mask;
+
+      final NameImpl name = names.get(ids[i]);
+      out.append('-').append(Long.toString((now - times[i]) / 1000L)).append("us ");
+      for (int d = 1; d < depths[i]; d++) out.append("  ");
+      out.append(name != null ? name.toString() : "?");
+
+      final MeterImpl[] m = meters[i];
+      for (int j = 0, n = m != null ? Math.min(m.length, width) : 0; j < n; j++) {
+        out.append(' ').append(m[j].name.toString()).append('=').append(Long.toString(deltas[i * width + j]));
+      }
+      out.append('\n');
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compiled include and exclude rules deciding which names are metered.<p>
+ * A pattern is matched against the dotted parts of a name. A <tt>*</tt> part at the start or end of a pattern matches
+ * one or more leading or trailing parts, any other <tt>*</tt> within a part matches any run of characters within that part.
+ * So <tt>com.acme.dao.*</tt> matches all names beneath <tt>com.acme.dao</tt> and <tt>*.toString</tt> matches all names ending in <tt>toString</tt>.
+ * When include patterns are configured a name must match one of them to be metered, and a name matching an exclude pattern is never metered.<p>
+ * Each pattern is compiled into a small automaton whose state, a bitmask of the pattern parts consumed, is advanced one name part at a time.
+ * This allows the name trie to be walked with each name evaluated from the state of its prefix.
+ */
+final class Rules {
+
+  static final String INCLUDE = "probes.include";
+  static final String EXCLUDE = "probes.exclude";
+
+  static final Rules NONE = new Rules(new Pattern[0], 0);
+
+  private final Pattern[] patterns;
+  private final int includes;
+
+  private Rules(Pattern[] patterns, int includes) {
+    this.patterns = patterns;
+    this.includes = includes;
+  }
+
+  /**
+   * Compiles the comma separated include and exclude patterns either of which can be <tt>null</tt>.
+   */
+  static Rules compile(String include, String exclude) {
+    final List<Pattern> patterns = new ArrayList<Pattern>();
+    for (String p : Extensions.list(include)) patterns.add(new Pattern(p));
+    final int includes = patterns.size();
+    for (String p : Extensions.list(exclude)) patterns.add(new Pattern(p));
+
+    return patterns.isEmpty() ? NONE : new Rules(patterns.toArray(new Pattern[patterns.size()]), includes);
+  }
+
+  static Rules load(EnvironmentImpl env, Names names) {
+    return compile(env.getString(names.parse(INCLUDE)), env.getString(names.parse(EXCLUDE)));
+  }
+
+  boolean isEmpty() {
+    return patterns.length == 0;
+  }
+
+  /**
+   * Returns the automaton states for the empty name prefix.
+   */
+  long[] start() {
+    final long[] states = new long[patterns.length];
+    for (int i = 0; i < states.length; i++) states[i] = 1L;
+    return states;
+  }
+
+  /**
+   * Returns the automaton states following the consumption of a name part.
+   */
+  long[] next(long[] states, String part) {
+    final long[] next = new long[states.length];
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] != 0L) next[i] = patterns[i].next(states[i], part);
+    }
+    return next;
+  }
+
+  /**
+   * Returns the automaton states for the name evaluated from the root.
+   */
+  long[] states(NameImpl name) {
+    return name.prefix == null ? next(start(), name.value) : next(states(name.prefix), name.value);
+  }
+
+  /**
+   * Returns <tt>true</tt> if a name with the automaton states is not to be metered.
+   */
+  boolean excluded(long[] states) {
+    for (int i = includes; i < patterns.length; i++) {
+      if (patterns[i].matched(states[i])) return true;
+    }
+
+    if (includes == 0) return false;
+
+    for (int i = 0; i < includes; i++) {
+      if (patterns[i].matched(states[i])) return false;
+    }
+    return true;
+  }
+
+  private static final class Pattern {
+
+    private final String[] parts;
+    private final long loops;
+    private final long end;
+
+    Pattern(String pattern) {
+      final String[] parts = pattern.split("\\.");
+      if (parts.length > 62) throw new IllegalStateException("pattern has too many parts: " + pattern);
+
+      long loops = 0L;
+      for (int i = 0; i < parts.length; i++) {
+        if (parts[i].length() == 0) throw new IllegalStateException("pattern has an empty part: " + pattern);
+
+        // a leading or trailing star part can consume further parts once reached
+        if (parts[i].equals("*") && (i == 0 || i == parts.length - 1)) loops |= 1L << (i + 1);
+      }
+
+      this.parts = parts;
+      this.loops = loops;
+      this.end = 1L << parts.length;
+    }
+
+    long next(long state, String part) {
+      long next = state & loops;
+      for (int i = 0; i < parts.length; i++) {
+        if ((state & (1L << i)) != 0L && glob(parts[i], part, 0, 0)) next |= 1L << (i + 1);
+      }
+      return next;
+    }
+
+    boolean matched(long state) {
+      return (state & end) != 0L;
+    }
+
+    private static boolean glob(String pattern, String value, int p, int v) {
+      while (p < pattern.length()) {
+        final char c = pattern.charAt(p);
+        if (c == '*') {
+          if (p == pattern.length() - 1) return true;
+          for (int i = v; i <= value.length(); i++) {
+            if (glob(pattern, value, p + 1, i)) return true;
+          }
+          return false;
+        }
+        if (v == value.length() || value.charAt(v) != c) return false;
+        p++;
+        v++;
+      }
+      return v == value.length();
+    }
+
+  }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+
+/**
+ * The reference implementation of {@link Probes.SavePoint SavePoint}.<p>
+ * A savepoint holds a copy of the thread level and per name id aggregated values of its context.
+ */
+final class SavePointImpl implements Probes.SavePoint {
+
+  final ContextImpl context;
+
+  long[] total;
+  long[][] values;
+
+  SavePointImpl(ContextImpl context) {
+    this.context = context;
+  }
+
+  public Probes.ChangeSet compare(Probes.SavePoint savepoint) {
+    final SavePointImpl older = (SavePointImpl) savepoint;
+    return ChangeSetImpl.create(context.provider, total, values, older.total, older.values);
+  }
+
+}
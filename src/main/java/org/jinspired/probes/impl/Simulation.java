@@ -0,0 +1,294 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.measure.ProbesMeasure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A discrete event simulation in which each actor is a {@link Probes.Context Context} and the time meters read a virtual clock
+ * advanced by the simulation rather than the system clock.<p>
+ * The actors of a simulation are multiplexed on the thread running it. The events are held in a binary heap of primitive arrays
+ * ordered by time and then by the order they were scheduled, so a run is deterministic. Dispatching an event advances the clock to
+ * its time and binds its actor as the context of the thread, so that {@link Probes#context()} and the probes fired by the event
+ * meter the actor, with a probe begun in one event of an actor able to be ended in a later one. An event models work taking time
+ * by calling {@link #advance(long)}. Independent simulations can be run in parallel, each on its own thread.<p>
+ * For the contexts of actors the <tt>clock.time</tt> and <tt>cpu.time</tt> meters read the virtual clock in microseconds and
+ * <tt>clock.tick</tt> in nanoseconds. Strategies and interceptors reading the metering of probes are then as deterministic as
+ * the simulation, though an interceptor blocking the thread blocks all actors. Actors are not recorded by the {@link Recorder}.
+ * <pre>
+ * final Simulation sim = Simulation.create();
+ * final Probes.Context client = sim.actor("client");
+ * sim.schedule(client, 0L, new Runnable() {
+ *   public void run() {
+ *     final Probes.Probe probe = Probes.begin(Probes.parse("service.call"));
+ *     sim.schedule(250L, new Runnable() {
+ *       public void run() {
+ *         probe.end();
+ *       }
+ *     });
+ *   }
+ * });
+ * sim.run();
+ * </pre>
+ */
+public final class Simulation {
+
+  private final Provider provider;
+  private final Thread thread;
+  private final List<ContextImpl> actors = new ArrayList<ContextImpl>();
+
+  private long now;
+  private long sequence;
+  private boolean running;
+  private ContextImpl current;
+
+  private int size;
+  private long[] times = new long[64];
+  private long[] orders = new long[64];
+  private ContextImpl[] targets = new ContextImpl[64];
+  private Runnable[] events = new Runnable[64];
+
+  /**
+   * The virtual clock in microseconds.
+   */
+  final ProbesMeasure time = new ProbesMeasure() {
+    public long getValue() {
+      return now;
+    }
+  };
+
+  /**
+   * The virtual clock in nanoseconds.
+   */
+  final ProbesMeasure tick = new ProbesMeasure() {
+    public long getValue() {
+      return now * 1000L;
+    }
+  };
+
+  private Simulation(Provider provider) {
+    this.provider = provider;
+    this.thread = Thread.currentThread();
+  }
+
+  /**
+   * Returns a new simulation confined to the calling thread with the virtual clock at zero.
+   *
+   * @throws IllegalStateException if the installed provider is not the reference implementation
+   */
+  public static Simulation create() {
+    final Probes.Context context = Probes.context();
+    if (!(context instanceof ContextImpl)) throw new IllegalStateException("reference implementation not installed");
+    return new Simulation(((ContextImpl) context).provider);
+  }
+
+  /**
+   * Returns a new actor of the simulation.
+   */
+  public Probes.Context actor(String name) {
+    if (name == null) throw new NullPointerException("name");
+    check();
+
+    final ContextImpl actor = provider.context(thread, this, name);
+    actors.add(actor);
+    return actor;
+  }
+
+  /**
+   * Returns the virtual time in microseconds.
+   */
+  public long now() {
+    return now;
+  }
+
+  /**
+   * Advances the virtual clock, modelling work taking time within an event. Events falling due in the meantime are dispatched
+   * once the event returns, at the advanced time.
+   */
+  public void advance(long delay) {
+    if (delay < 0L) throw new IllegalArgumentException("delay: " + delay);
+    check();
+
+    now += delay;
+  }
+
+  /**
+   * Schedules an event of the actor to be dispatched after the delay in microseconds.
+   *
+   * @throws IllegalArgumentException if the actor is not of this simulation
+   */
+  public void schedule(Probes.Context actor, long delay, Runnable event) {
+    if (actor == null) throw new NullPointerException("actor");
+    if (event == null) throw new NullPointerException("event");
+    if (delay < 0L) throw new IllegalArgumentException("delay: " + delay);
+    if (!(actor instanceof ContextImpl) || ((ContextImpl) actor).simulation != this) throw new IllegalArgumentException("actor: " + actor.getName());
+    check();
+
+    add(now + delay, (ContextImpl) actor, event);
+  }
+
+  /**
+   * Schedules an event of the actor of the event being dispatched.
+   *
+   * @throws IllegalStateException if not called within an event
+   */
+  public void schedule(long delay, Runnable event) {
+    final ContextImpl actor = current;
+    if (actor == null) throw new IllegalStateException("not within an event");
+
+    schedule(actor, delay, event);
+  }
+
+  /**
+   * Dispatches events until none are left, returning the number dispatched.
+   */
+  public long run() {
+    return run(Long.MAX_VALUE);
+  }
+
+  /**
+   * Dispatches the events due up to and including the virtual time, advancing the clock to it, and returns the number dispatched.
+   */
+  public long run(long until) {
+    check();
+    if (running) throw new IllegalStateException("already running");
+
+    running = true;
+    long count = 0L;
+    ContextImpl previous = null;
+    ContextImpl bound = null;
+    try {
+      while (size > 0 && times[0] <= until) {
+        final long time = times[0];
+        final ContextImpl actor = targets[0];
+        final Runnable event = events[0];
+        remove();
+
+        if (time > now) now = time;
+        if (actor != bound) {
+          final ContextImpl p = provider.bind(actor);
+          if (bound == null) previous = p;
+          bound = actor;
+        }
+
+        current = actor;
+        event.run();
+        count++;
+      }
+      if (until != Long.MAX_VALUE && until > now) now = until;
+    } finally {
+      current = null;
+      running = false;
+      if (bound != null) provider.bind(previous);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of events scheduled and not yet dispatched.
+   */
+  public int pending() {
+    return size;
+  }
+
+  /**
+   * Ends the simulation with the metering of its actors collected on the next snapshot and the actors then released.
+   */
+  public void close() {
+    check();
+
+    for (ContextImpl actor : actors) actor.closed = true;
+    actors.clear();
+    for (int i = 0; i < size; i++) {
+      targets[i] = null;
+      events[i] = null;
+    }
+    size = 0;
+  }
+
+  private void check() {
+    if (Thread.currentThread() != thread) throw new IllegalStateException("simulation confined to thread: " + thread.getName());
+  }
+
+  private void add(long time, ContextImpl actor, Runnable event) {
+    if (size == times.length) {
+      final int length = size << 1;
+      times = Stats.grow(times, length);
+      orders = Stats.grow(orders, length);
+      targets = Arrays.copyOf(targets, length);
+      events = Arrays.copyOf(events, length);
+    }
+
+    final long order = sequence++;
+    int i = size++;
+    while (i > 0) {
+      final int parent = (i - 1) >>> 1;
+      if (!before(time, order, parent)) break;
+      move(parent, i);
+      i = parent;
+    }
+    set(i, time, order, actor, event);
+  }
+
+  private void remove() {
+    final int last = --size;
+    final long time = times[last];
+    final long order = orders[last];
+    final ContextImpl actor = targets[last];
+    final Runnable event = events[last];
+    targets[last] = null;
+    events[last] = null;
+    if (last == 0) return;
+
+    int i = 0;
+    while (true) {
+      int child = (i << 1) + 1;
+      if (child >= last) break;
+      if (child + 1 < last && before(times[child + 1], orders[child + 1], child)) child++;
+      if (!before(times[child], orders[child], time, order)) break;
+      move(child, i);
+      i = child;
+    }
+    set(i, time, order, actor, event);
+  }
+
+  private boolean before(long time, long order, int i) {
+    return before(time, order, times[i], orders[i]);
+  }
+
+  private static boolean before(long time, long order, long otherTime, long otherOrder) {
+    return time < otherTime || (time == otherTime && order < otherOrder);
+  }
+
+  private void move(int from, int to) {
+    set(to, times[from], orders[from], targets[from], events[from]);
+  }
+
+  private void set(int i, long time, long order, ContextImpl actor, Runnable event) {
+    times[i] = time;
+    orders[i] = order;
+    targets[i] = actor;
+    events[i] = event;
+  }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * The off-heap storage of the aggregated metering of each name within a context, indexed by name id.<p>
+ * Each name has a slot of a mark followed by its values, laid out as in {@link Stats}. Slots are allocated in direct buffer
+ * chunks of 4096 names, so the heap holds only the chunk array however many names are metered, with the values updated in place.
+ * A mark of zero denotes a name never recorded.
+ */
+final class Slab {
+
+  static final String ENABLED = "probes.offheap";
+
+  private static final int SHIFT = 12;
+  private static final int CHUNK = 1 << SHIFT;
+  private static final int MASK = CHUNK - 1;
+
+  final int fields;
+  private final int stride;
+  private LongBuffer[] chunks = new LongBuffer[16];
+
+  Slab(int fields) {
+    this.fields = fields;
+    this.stride = fields + 1;
+  }
+
+  long mark(int id) {
+    final LongBuffer c = chunk(id);
+    return c != null ? c.get((id & MASK) * stride) : 0L;
+  }
+
+  void mark(int id, long mark) {
+    alloc(id).put((id & MASK) * stride, mark);
+  }
+
+  long get(int id, int field) {
+    final LongBuffer c = chunk(id);
+    return c != null ? c.get((id & MASK) * stride + 1 + field) : 0L;
+  }
+
+  void set(int id, int field, long value) {
+    alloc(id).put((id & MASK) * stride + 1 + field, value);
+  }
+
+  void add(int id, int field, long delta) {
+    final LongBuffer c = alloc(id);
+    final int i = (id & MASK) * stride + 1 + field;
+    c.put(i, c.get(i) + delta);
+  }
+
+  /**
+   * Adds the count, total and inherent total of a meter to the values of the name whose chunk has been allocated.
+   */
+  void add(int id, int meter, long count, long total, long inherent) {
+    final LongBuffer c = chunks[id >>> SHIFT];
+    final int i = (id & MASK) * stride + 1 + meter * Stats.FIELDS;
+    c.put(i + Stats.COUNT, c.get(i + Stats.COUNT) + count);
+    c.put(i + Stats.TOTAL, c.get(i + Stats.TOTAL) + total);
+    c.put(i + Stats.INHERENT, c.get(i + Stats.INHERENT) + inherent);
+  }
+
+  /**
+   * Returns a copy of the values of the name.
+   */
+  long[] copy(int id, long[] copy) {
+    if (copy == null || copy.length != fields) copy = new long[fields];
+
+    final LongBuffer c = chunk(id);
+    final int base = (id & MASK) * stride + 1;
+    for (int i = 0; i < fields; i++) copy[i] = c != null ? c.get(base + i) : 0L;
+    return copy;
+  }
+
+  /**
+   * Returns a slab with room for the number of fields holding a copy of this slab's slots.
+   */
+  Slab widen(int fields) {
+    final Slab wider = new Slab(fields);
+    final LongBuffer[] cs = chunks;
+    wider.chunks = new LongBuffer[cs.length];
+    for (int k = 0; k < cs.length; k++) {
+      if (cs[k] == null) continue;
+
+      final LongBuffer c = wider.chunks[k] = allocate(wider.stride);
+      for (int j = 0; j < CHUNK; j++) {
+        for (int i = 0; i < stride; i++) c.put(j * wider.stride + i, cs[k].get(j * stride + i));
+      }
+    }
+    return wider;
+  }
+
+  private LongBuffer chunk(int id) {
+    final LongBuffer[] cs = chunks;
+    final int k = id >>> SHIFT;
+    return k < cs.length ? cs[k] : null;
+  }
+
+  /**
+   * Returns the chunk of the name allocating it if not already.
+   */
+  LongBuffer alloc(int id) {
+    final int k = id >>> SHIFT;
+
+    LongBuffer[] cs = chunks;
+    if (k >= cs.length) {
+      final LongBuffer[] grown = new LongBuffer[Math.max(cs.length << 1, k + 1)];
+      System.arraycopy(cs, 0, grown, 0, cs.length);
+      chunks = cs = grown;
+    }
+
+    final LongBuffer c = cs[k];
+    return c != null ? c : (cs[k] = allocate(stride));
+  }
+
+  private static LongBuffer allocate(int stride) {
+    return ByteBuffer.allocateDirect(CHUNK * stride * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+  }
+
+}
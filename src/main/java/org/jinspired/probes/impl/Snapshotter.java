@@ -0,0 +1,352 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import org.jinspired.probes.Probes;
+import org.jinspired.probes.exporter.ProbesExporter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The background thread taking a snapshot of the metering recorded across all contexts at a fixed interval and passing
+ * the interval deltas, as a {@link Probes.ChangeSet ChangeSet}, to the configured exporters and into the {@link Table} queried by the {@link Endpoint}.
+ * In call tree mode the deltas of each path are merged into the {@link PathTable} written as {@link CollapsedStacks}.
+ * The deltas of each name are also added to the {@link StatsFile} and to the rolling {@link Windows} when enabled.<p>
+ * Only the stats on the changed lists of each context are read, so the cost of a snapshot is proportional to the number of names
+ * changed within the interval and not the number of names metered. Application threads are never stopped, with each stats read
+ * retried if recorded to while being copied. A context is dropped after its final snapshot once its thread has terminated.
+ */
+final class Snapshotter implements Runnable {
+
+  static final String EXPORTERS = "probes.exporters";
+  static final String INTERVAL = "probes.export.interval";
+
+  private static final Logger LOGGER = Logger.getLogger(Snapshotter.class.getName());
+
+  private final Provider provider;
+  private final ProbesExporter[] exporters;
+  private final Table table;
+  private final PathTable paths;
+  private final CollapsedStacks stacks;
+  private final StatsFile file;
+  private final Windows windows;
+  private final long interval;
+
+  private long[][] deltas = new long[1024][];
+  private int[] marks = new int[1024];
+  private int mark;
+  private int[] ids = new int[256];
+  private int size;
+  private long[] total;
+  private long[] copy;
+
+  private long[][] histograms = new long[1024][];
+  private long[] histogram;
+  private final HashMap<Long, Link> links = new HashMap<Long, Link>();
+  private long[] path;
+
+  Snapshotter(Provider provider, ProbesExporter[] exporters, Table table, PathTable paths, CollapsedStacks stacks, StatsFile file,
+              Windows windows, long interval) {
+    this.provider = provider;
+    this.exporters = exporters;
+    this.table = table;
+    this.paths = paths;
+    this.stacks = stacks;
+    this.file = file;
+    this.windows = windows;
+    this.interval = interval;
+  }
+
+  /**
+   * Returns <tt>true</tt> if the environment configures exporters or an endpoint and so contexts must record their changes.
+   */
+  static boolean enabled(EnvironmentImpl env, Names names) {
+    return !Extensions.list(env.getString(names.parse(EXPORTERS))).isEmpty()
+           || Endpoint.enabled(env, names)
+           || CollapsedStacks.enabled(env, names)
+           || StatsFile.enabled(env, names)
+           || Windows.enabled(env, names);
+  }
+
+  /**
+   * Starts the snapshot thread if exporters or an endpoint are configured, with a final export made on shutdown.
+   */
+  static void start(Provider provider) {
+    final EnvironmentImpl env = provider.environment;
+    final Names names = provider.names;
+
+    final List<ProbesExporter> exporters = new ArrayList<ProbesExporter>();
+    for (String cls : Extensions.list(env.getString(names.parse(EXPORTERS)))) {
+      final ProbesExporter exporter = Extensions.newInstance(cls, ProbesExporter.class);
+      exporter.init(env);
+      exporters.add(exporter);
+    }
+
+    final Table table = Endpoint.enabled(env, names) ? new Table() : null;
+    final CollapsedStacks stacks = CollapsedStacks.create(provider);
+    // paths are also captured beneath the firings at full fidelity outside of call tree mode
+    final PathTable paths = table != null || stacks != null ? new PathTable(provider.calltreeNodes) : null;
+    final StatsFile file;
+    try {
+      file = StatsFile.create(provider);
+    } catch (IOException e) {
+      throw new IllegalStateException("unable to create stats file", e);
+    }
+    final Windows windows = Windows.create(env, names);
+    if (exporters.isEmpty() && table == null && stacks == null && file == null && windows == null) return;
+
+    final long interval = env.getLong(names.parse(INTERVAL), 10000L);
+    if (interval <= 0L) throw new IllegalStateException(INTERVAL + ": " + interval);
+
+    provider.windows = windows;
+    if (table != null) Endpoint.start(provider, table, paths);
+
+    final Snapshotter snapshotter = new Snapshotter(provider, exporters.toArray(new ProbesExporter[exporters.size()]), table, paths, stacks, file,
+                                                    windows, interval);
+
+    final Thread thread = new Thread(snapshotter, "probes-snapshotter");
+    thread.setDaemon(true);
+    thread.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread("probes-snapshotter-shutdown") {
+      @Override
+      public void run() {
+        thread.interrupt();
+        try {
+          thread.join();
+        } catch (InterruptedException ignored) {
+          // exiting anyway
+        }
+      }
+    });
+  }
+
+  public void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          break;
+        }
+        export();
+      }
+      export();
+    } finally {
+      for (ProbesExporter exporter : exporters) {
+        try {
+          exporter.close();
+        } catch (Throwable t) {
+          LOGGER.log(Level.WARNING, "Unable to close exporter: " + exporter, t);
+        }
+      }
+    }
+  }
+
+  private void export() {
+    final Probes.ChangeSet changes;
+    try {
+      changes = snapshot();
+    } catch (Throwable t) {
+      // the thread carries on so a failure of one snapshot does not silently end all later ones
+      LOGGER.log(Level.WARNING, "Unable to take snapshot", t);
+      return;
+    }
+    final long time = System.currentTimeMillis();
+
+    if (stacks != null) {
+      try {
+        stacks.write(paths);
+      } catch (Throwable t) {
+        LOGGER.log(Level.WARNING, "Unable to write collapsed stacks", t);
+      }
+    }
+
+    if (changes == null) return;
+
+    for (ProbesExporter exporter : exporters) {
+      try {
+        exporter.export(time, changes);
+      } catch (Throwable t) {
+        LOGGER.log(Level.WARNING, "Unable to export to: " + exporter, t);
+      }
+    }
+  }
+
+  /**
+   * Returns the metering deltas since the previous snapshot aggregated across all contexts, or <tt>null</tt> if there are no exporters,
+   * updating the table with the deltas.
+   */
+  ChangeSetImpl snapshot() {
+    size = 0;
+    total = clear(total);
+    mark++;
+
+    for (Iterator<ContextImpl> it = provider.contexts(); it.hasNext();) {
+      final ContextImpl context = it.next();
+      final boolean terminated = !context.thread.isAlive() || context.closed;
+
+      final int list = context.flip();
+      final Stats[] changed = context.changed(list);
+      for (int i = 0, n = context.size(list); i < n; i++) {
+        final Stats s = changed[i];
+        copy = context.read(s, copy);
+
+        long[] d;
+        if (s.node != null) {
+          if (paths == null) continue;
+          d = path = clear(grow(path, copy.length));
+        } else if (s.name == null) {
+          d = total = grow(total, copy.length);
+        } else if (s.caller != null) {
+          final Long key = (long) s.caller.id << 32 | s.name.id;
+          Link link = links.get(key);
+          if (link == null) links.put(key, link = new Link(s.caller, s.name));
+          d = link.values = grow(link.values, copy.length);
+        } else {
+          d = deltas(s.name.id, copy.length);
+        }
+
+        final long[] last = s.exported;
+        for (int j = 0; j < copy.length; j++) d[j] += copy[j] - (last != null && j < last.length ? last[j] : 0L);
+        s.exported = copy(copy, last);
+
+        if (s.node != null) {
+          paths.add(s.node, d);
+        } else if (table != null && s.name != null && s.caller == null) {
+          histogram = context.histogram(s, histogram);
+          if (histogram != null) {
+            final int id = s.name.id;
+            final long[] h = histograms[id] = grow(histograms[id], histogram.length);
+            final long[] hl = s.exportedHistogram;
+            for (int j = 0; j < histogram.length; j++) h[j] += histogram[j] - (hl != null && j < hl.length ? hl[j] : 0L);
+            s.exportedHistogram = copy(histogram, hl);
+          }
+        }
+      }
+
+      final int[] changedIds = context.changedIds(list);
+      for (int i = 0, n = context.idSize(list); i < n; i++) {
+        final int id = changedIds[i];
+        copy = context.read(id, copy);
+
+        Slab last = context.exported;
+        if (last == null || last.fields < copy.length) context.exported = last = last == null ? new Slab(copy.length) : last.widen(copy.length);
+
+        final long[] d = deltas(id, copy.length);
+        for (int j = 0; j < copy.length; j++) {
+          d[j] += copy[j] - last.get(id, j);
+          last.set(id, j, copy[j]);
+        }
+      }
+      context.clear(list);
+
+      if (terminated) it.remove();
+    }
+
+    if (table != null) {
+      for (int i = 0; i < size; i++) {
+        final int id = ids[i];
+        table.add(provider.names.get(id), deltas[id], histograms[id]);
+      }
+      for (Link link : links.values()) table.link(link.caller, link.callee, link.values);
+    }
+    links.clear();
+
+    if (file != null) file.write(provider.names, deltas, ids, size);
+
+    if (windows != null) {
+      final long time = System.currentTimeMillis();
+      for (int i = 0; i < size; i++) windows.add(ids[i], time, deltas[ids[i]]);
+    }
+
+    return exporters.length > 0 ? ChangeSetImpl.create(provider, total, deltas, ids, size) : null;
+  }
+
+  /**
+   * Returns the deltas of the name within this snapshot, cleared on the first change of the name.
+   */
+  private long[] deltas(int id, int length) {
+    if (id >= deltas.length) {
+      deltas = grow(deltas, Math.max(deltas.length << 1, id + 1));
+      histograms = grow(histograms, deltas.length);
+      marks = grow(marks, deltas.length);
+    }
+
+    if (marks[id] == mark) return deltas[id] = grow(deltas[id], length);
+
+    // the first change of the name within this snapshot
+    marks[id] = mark;
+    if (histograms[id] != null) clear(histograms[id]);
+    if (size == ids.length) ids = grow(ids, size << 1);
+    ids[size++] = id;
+    return deltas[id] = clear(grow(deltas[id], length));
+  }
+
+  private static long[] clear(long[] values) {
+    if (values == null) return new long[0];
+    for (int i = 0; i < values.length; i++) values[i] = 0L;
+    return values;
+  }
+
+  private static long[] grow(long[] values, int length) {
+    if (values == null) return new long[length];
+    return values.length >= length ? values : Stats.grow(values, length);
+  }
+
+  private static long[][] grow(long[][] values, int length) {
+    final long[][] grown = new long[length][];
+    System.arraycopy(values, 0, grown, 0, values.length);
+    return grown;
+  }
+
+  private static int[] grow(int[] values, int length) {
+    final int[] grown = new int[length];
+    System.arraycopy(values, 0, grown, 0, values.length);
+    return grown;
+  }
+
+  private static long[] copy(long[] src, long[] dst) {
+    if (dst == null || dst.length != src.length) dst = new long[src.length];
+    System.arraycopy(src, 0, dst, 0, src.length);
+    return dst;
+  }
+
+  /**
+   * The deltas of a callee when called directly by a caller within a snapshot.
+   */
+  private static final class Link {
+
+    final NameImpl caller;
+    final NameImpl callee;
+    long[] values;
+
+    Link(NameImpl caller, NameImpl callee) {
+      this.caller = caller;
+      this.callee = callee;
+    }
+
+  }
+
+}
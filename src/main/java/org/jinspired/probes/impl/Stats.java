@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+/**
+ * The aggregated metering of a probe name, or the thread as a whole, within a context.<p>
+ * The values are laid out as a (count, total, inherent total) triple for each meter by meter index.
+ * When details are recorded the stats also hold a {@link Histogram} of the first meter and are kept for each caller of a name.
+ * In call tree mode stats are also kept for each {@link CallTree} path.
+ */
+final class Stats {
+
+  static final int COUNT = 0;
+  static final int TOTAL = 1;
+  static final int INHERENT = 2;
+  static final int FIELDS = 3;
+
+  final NameImpl name;
+
+  /**
+   * The name of the directly enclosing metered probe for caller stats, otherwise <tt>null</tt>.
+   */
+  final NameImpl caller;
+
+  /**
+   * The call tree node for the stats of a path, otherwise <tt>null</tt>.
+   */
+  final CallTree.Node node;
+
+  long[] values;
+  long[] histogram;
+
+  /**
+   * The snapshot epoch in which the stats were last added to the context's changed list.
+   */
+  int epoch = -1;
+
+  /**
+   * The values as of the previous snapshot, read and written only by the {@link Snapshotter}.
+   */
+  long[] exported;
+  long[] exportedHistogram;
+
+  Stats(NameImpl name, int meters) {
+    this(name, null, null, meters);
+  }
+
+  Stats(NameImpl name, NameImpl caller, int meters) {
+    this(name, caller, null, meters);
+  }
+
+  Stats(NameImpl name, CallTree.Node node, int meters) {
+    this(name, null, node, meters);
+  }
+
+  private Stats(NameImpl name, NameImpl caller, CallTree.Node node, int meters) {
+    this.name = name;
+    this.caller = caller;
+    this.node = node;
+    this.values = new long[meters * FIELDS];
+  }
+
+  void add(int meter, long count, long total, long inherent) {
+    final int i = meter * FIELDS;
+
+    long[] v = values;
+    if (i >= v.length) values = v = grow(v, i + FIELDS);
+
+    v[i + COUNT] += count;
+    v[i + TOTAL] += total;
+    v[i + INHERENT] += inherent;
+  }
+
+  static long[] grow(long[] values, int length) {
+    final long[] grown = new long[length];
+    System.arraycopy(values, 0, grown, 0, values.length);
+    return grown;
+  }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The memory mapped file into which the aggregated metering of each name is published at each snapshot for out of process readers
+ * such as the {@link StatsFileReader}. When <tt>probes.statsfile</tt> is set the file is created with <tt>probes.statsfile.slots</tt>
+ * (default <tt>4096</tt>) slots, one per name in order of first change, with the names beyond the capacity counted as dropped.<p>
+ * All values are little endian with the following fixed layout:
+ * <pre>
+ * header     0  int   magic 0x50524253
+ *            4  int   version 1
+ *            8  int   the number of meters, M
+ *           12  int   the number of slots
+ *           16  int   the size of a slot in bytes, 256 + 24 * M
+ *           20  int   the offset of the first slot, 64 + 64 * M
+ *           24  long  the time of the last update in milliseconds
+ *           32  int   the number of slots used
+ *           36  int   the number of names dropped
+ * meters    64  M * 64 bytes of the UTF-8 meter names, zero padded
+ * slot       0  long  the sequence, odd while being written
+ *            8  int   the length of the UTF-8 name in bytes
+ *           16  240 bytes of the name, truncated if longer
+ *          256  M * (count, total, inherent total) longs
+ * </pre>
+ * The snapshotter is the single writer. A slot is guarded by its sequence, so a reader copies its values and retries if the sequence
+ * was odd or changed. The name of a slot is written before the slot is counted as used and never changes.<p>
+ * The Java memory model says nothing of the order in which writes to a mapped region become visible to another process, and Java 6
+ * has no explicit fences. The writes are kept in program order by the compiler with a volatile write after each step, after which
+ * the order seen by the reader is that of the hardware. The sequence therefore only guards a slot on hardware with total store order,
+ * such as x86 and SPARC, while on weakly ordered hardware such as ARM and POWER a reader can see torn values.<p>
+ * The meters are those registered when the file is created on the start of the snapshotter, with the layout fixed from then on,
+ * so the metering of meters registered later, such as those added to the {@link ProviderStack} at runtime, is not published.
+ */
+final class StatsFile {
+
+  static final String FILE = "probes.statsfile";
+  static final String SLOTS = "probes.statsfile.slots";
+
+  static final int MAGIC = 0x50524253;
+  static final int VERSION = 1;
+
+  static final int HEADER = 64;
+  static final int METER = 64;
+  static final int NAME = 240;
+  static final int SLOT_HEADER = 16;
+  static final int VALUES = SLOT_HEADER + NAME;
+
+  static final int METERS_OFFSET = 8;
+  static final int SLOTS_OFFSET = 12;
+  static final int SLOT_SIZE_OFFSET = 16;
+  static final int FIRST_OFFSET = 20;
+  static final int TIME_OFFSET = 24;
+  static final int USED_OFFSET = 32;
+  static final int DROPPED_OFFSET = 36;
+
+  private final MappedByteBuffer buffer;
+  private final int meters;
+  private final int slots;
+  private final int size;
+  private final int first;
+
+  /**
+   * The slot of each name id plus one, zero if not yet assigned.
+   */
+  private int[] index = new int[1024];
+  private int used;
+  private int dropped;
+
+  /**
+   * Written after each step of a slot update so that the compiler does not reorder the preceding writes after it,
+   * the order they become visible to another process being left to the hardware.
+   */
+  private volatile int fence;
+
+  private StatsFile(MappedByteBuffer buffer, int meters, int slots) {
+    this.buffer = buffer;
+    this.meters = meters;
+    this.slots = slots;
+    this.size = VALUES + meters * Stats.FIELDS * 8;
+    this.first = HEADER + meters * METER;
+  }
+
+  static boolean enabled(EnvironmentImpl env, Names names) {
+    return env.getString(names.parse(FILE)) != null;
+  }
+
+  /**
+   * Returns the file created for the meters of the provider or <tt>null</tt> if not enabled.
+   */
+  static StatsFile create(Provider provider) throws IOException {
+    final EnvironmentImpl env = provider.environment;
+    final Names names = provider.names;
+    if (!enabled(env, names)) return null;
+
+    final int slots = env.getInt(names.parse(SLOTS), 4096);
+    if (slots <= 0) throw new IllegalStateException(SLOTS + ": " + slots);
+
+    final int meters = provider.meterCount();
+    final StatsFile file;
+    final RandomAccessFile raf = new RandomAccessFile(new File(env.getString(names.parse(FILE))), "rw");
+    try {
+      final long length = HEADER + (long) meters * METER + (long) slots * (VALUES + meters * Stats.FIELDS * 8);
+      raf.setLength(0L);
+      raf.setLength(length);
+      final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, length);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      file = new StatsFile(buffer, meters, slots);
+    } finally {
+      // the mapping remains valid once the file is closed
+      raf.close();
+    }
+
+    file.header(provider);
+    return file;
+  }
+
+  private void header(Provider provider) {
+    for (int m = 0; m < meters; m++) string(HEADER + m * METER, METER, provider.meterAt(m).name.toString());
+
+    buffer.putInt(METERS_OFFSET, meters);
+    buffer.putInt(SLOTS_OFFSET, slots);
+    buffer.putInt(SLOT_SIZE_OFFSET, size);
+    buffer.putInt(FIRST_OFFSET, first);
+    buffer.putInt(4, VERSION);
+    fence = 0;
+    buffer.putInt(0, MAGIC);
+  }
+
+  /**
+   * Adds the deltas of the listed names, held in an array indexed by name id, to their slots,
+   * those of meters registered after the file was created being skipped.
+   */
+  void write(Names names, long[][] deltas, int[] ids, int count) {
+    for (int i = 0; i < count; i++) {
+      final int id = ids[i];
+      final int slot = slot(names, id);
+      if (slot < 0) continue;
+
+      final int base = first + slot * size;
+      final long seq = buffer.getLong(base);
+      buffer.putLong(base, seq + 1L);
+      fence = i;
+
+      final long[] d = deltas[id];
+      for (int j = 0, n = Math.min(d.length, meters * Stats.FIELDS); j < n; j++) {
+        final int offset = base + VALUES + j * 8;
+        buffer.putLong(offset, buffer.getLong(offset) + d[j]);
+      }
+
+      fence = i;
+      buffer.putLong(base, seq + 2L);
+    }
+
+    buffer.putInt(DROPPED_OFFSET, dropped);
+    buffer.putLong(TIME_OFFSET, System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the slot of the name assigning the next free slot on the first change of the name, or <tt>-1</tt> if the file is full.
+   */
+  private int slot(Names names, int id) {
+    if (id >= index.length) {
+      final int[] grown = new int[Math.max(index.length << 1, id + 1)];
+      System.arraycopy(index, 0, grown, 0, index.length);
+      index = grown;
+    }
+
+    final int slot = index[id];
+    if (slot > 0) return slot - 1;
+    if (slot < 0) return -1;
+
+    if (used == slots) {
+      index[id] = -1;
+      dropped++;
+      return -1;
+    }
+
+    final int base = first + used * size;
+    final int length = string(base + SLOT_HEADER, NAME, names.get(id).toString());
+    buffer.putInt(base + 8, length);
+    fence = used;
+
+    index[id] = ++used;
+    buffer.putInt(USED_OFFSET, used);
+    return used - 1;
+  }
+
+  /**
+   * Writes the UTF-8 bytes of the value truncated to the length returning the number of bytes written.
+   */
+  private int string(int offset, int length, String value) {
+    byte[] bytes;
+    try {
+      bytes = value.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+
+    final int n = Math.min(bytes.length, length);
+    for (int i = 0; i < n; i++) buffer.put(offset + i, bytes[i]);
+    return n;
+  }
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A standalone tool tailing a {@link StatsFile}, printing at each interval the names whose slot was written along with the
+ * deltas of each meter, and the number of names newly dropped. It reads the file by its layout alone, so can be run against any process publishing a stats file.
+ * <pre>
+ * java -cp probes-api.jar org.jinspired.probes.impl.StatsFileReader probes.stats [interval millis]
+ * </pre>
+ */
+public final class StatsFileReader {
+
+  private final MappedByteBuffer buffer;
+  private final int meters;
+  private final int size;
+  private final int first;
+  private final String[] names;
+
+  private String[] slots = new String[0];
+  private long[][] last = new long[0][];
+  private long[] seqs = new long[0];
+  private int dropped;
+
+  StatsFileReader(MappedByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != StatsFile.MAGIC) throw new IOException("not a stats file");
+    if (buffer.getInt(4) != StatsFile.VERSION) throw new IOException("unsupported version: " + buffer.getInt(4));
+
+    this.meters = buffer.getInt(StatsFile.METERS_OFFSET);
+    this.size = buffer.getInt(StatsFile.SLOT_SIZE_OFFSET);
+    this.first = buffer.getInt(StatsFile.FIRST_OFFSET);
+
+    this.names = new String[meters];
+    for (int m = 0; m < meters; m++) names[m] = string(StatsFile.HEADER + m * StatsFile.METER, StatsFile.METER);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: StatsFileReader <file> [interval millis]");
+      System.exit(2);
+    }
+
+    final long interval = args.length > 1 ? Long.parseLong(args[1]) : 1000L;
+
+    final RandomAccessFile raf = new RandomAccessFile(new File(args[0]), "r");
+    final MappedByteBuffer buffer;
+    try {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, raf.length());
+    } finally {
+      raf.close();
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    final StatsFileReader reader = new StatsFileReader(buffer);
+    while (true) {
+      reader.print(System.out);
+      Thread.sleep(interval);
+    }
+  }
+
+  /**
+   * Prints the deltas of the slots written since the previous call, compared by the sequence of the slot
+   * so that a file without meters is handled alike.
+   */
+  void print(PrintStream out) throws UnsupportedEncodingException {
+    final int used = buffer.getInt(StatsFile.USED_OFFSET);
+    if (used > slots.length) {
+      final String[] s = new String[used];
+      System.arraycopy(slots, 0, s, 0, slots.length);
+      slots = s;
+      final long[][] l = new long[used][];
+      System.arraycopy(last, 0, l, 0, last.length);
+      last = l;
+      final long[] q = new long[used];
+      System.arraycopy(seqs, 0, q, 0, seqs.length);
+      seqs = q;
+    }
+
+    final long time = buffer.getLong(StatsFile.TIME_OFFSET);
+    for (int slot = 0; slot < used; slot++) {
+      final int base = first + slot * size;
+      if (slots[slot] == null) slots[slot] = string(base + StatsFile.SLOT_HEADER, buffer.getInt(base + 8));
+
+      final long[] previous = last[slot];
+      if (previous != null && buffer.getLong(base) == seqs[slot]) continue;
+      final long[] values = read(slot, base);
+
+      final StringBuilder sb = new StringBuilder();
+      sb.append(time).append(' ').append(slots[slot]);
+      for (int m = 0; m < meters; m++) {
+        sb.append(' ').append(names[m]);
+        for (int f = 0; f < Stats.FIELDS; f++) {
+          final int i = m * Stats.FIELDS + f;
+          sb.append(f == 0 ? '=' : '/').append(values[i] - (previous != null ? previous[i] : 0L));
+        }
+      }
+      out.println(sb);
+      last[slot] = values;
+    }
+
+    final int d = buffer.getInt(StatsFile.DROPPED_OFFSET);
+    if (d != dropped) out.println(time + " dropped " + (d - dropped));
+    dropped = d;
+  }
+
+  /**
+   * Returns a consistent copy of the values of the slot, retrying while the slot is being written, and records the sequence read.
+   */
+  private long[] read(int slot, int base) {
+    final long[] values = new long[meters * Stats.FIELDS];
+    while (true) {
+      final long seq = buffer.getLong(base);
+      if ((seq & 1L) == 0L) {
+        for (int i = 0; i < values.length; i++) values[i] = buffer.getLong(base + StatsFile.VALUES + i * 8);
+        if (buffer.getLong(base) == seq) {
+          seqs[slot] = seq;
+          return values;
+        }
+      }
+      Thread.yield();
+    }
+  }
+
+  private String string(int offset, int length) throws UnsupportedEncodingException {
+    final byte[] bytes = new byte[length];
+    int n = 0;
+    while (n < length && (bytes[n] = buffer.get(offset + n)) != 0) n++;
+    return new String(bytes, 0, n, "UTF-8");
+  }
+
+}
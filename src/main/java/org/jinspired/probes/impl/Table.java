@@ -0,0 +1,144 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+/**
+ * The cumulative metering of each name across all contexts as of the last snapshot, indexed by name id.<p>
+ * The table is updated by the {@link Snapshotter} with the deltas of the names changed within an interval. Each update replaces
+ * the immutable row of a name, so queries read a consistent row without locking and never block the recording threads or the snapshotter.
+ */
+final class Table {
+
+  private static final Link[] NO_LINKS = new Link[0];
+
+  private volatile Row[] rows = new Row[1024];
+
+  Row get(int id) {
+    final Row[] r = rows;
+    return id < r.length ? r[id] : null;
+  }
+
+  /**
+   * The upper bound (exclusive) of the ids of the names within the table.
+   */
+  int size() {
+    return rows.length;
+  }
+
+  /**
+   * Adds the value and histogram deltas, the latter of which can be <tt>null</tt>, to the row of the name.
+   */
+  void add(NameImpl name, long[] values, long[] histogram) {
+    final Row row = row(name);
+    set(name.id, new Row(name, sum(row.values, values), sum(row.histogram, histogram), row.callers, row.callees));
+  }
+
+  /**
+   * Adds the value deltas of the callee when called directly by the caller to the rows of both.
+   */
+  void link(NameImpl caller, NameImpl callee, long[] values) {
+    final Row e = row(callee);
+    set(callee.id, new Row(callee, e.values, e.histogram, link(e.callers, caller, values), e.callees));
+
+    final Row r = row(caller);
+    set(caller.id, new Row(caller, r.values, r.histogram, r.callers, link(r.callees, callee, values)));
+  }
+
+  private Row row(NameImpl name) {
+    final Row row = get(name.id);
+    return row != null ? row : new Row(name, null, null, NO_LINKS, NO_LINKS);
+  }
+
+  private void set(int id, Row row) {
+    Row[] r = rows;
+    if (id >= r.length) {
+      final Row[] grown = new Row[Math.max(r.length << 1, id + 1)];
+      System.arraycopy(r, 0, grown, 0, r.length);
+      r = grown;
+    }
+    r[id] = row;
+    rows = r;
+  }
+
+  private static Link[] link(Link[] links, NameImpl name, long[] values) {
+    for (int i = 0; i < links.length; i++) {
+      if (links[i].name == name) {
+        final Link[] update = links.clone();
+        update[i] = new Link(name, sum(links[i].values, values));
+        return update;
+      }
+    }
+
+    final Link[] update = new Link[links.length + 1];
+    System.arraycopy(links, 0, update, 0, links.length);
+    update[links.length] = new Link(name, sum(null, values));
+    return update;
+  }
+
+  private static long[] sum(long[] values, long[] deltas) {
+    if (deltas == null) return values;
+    if (values == null) return deltas.clone();
+
+    final long[] sum = new long[Math.max(values.length, deltas.length)];
+    System.arraycopy(values, 0, sum, 0, values.length);
+    for (int i = 0; i < deltas.length; i++) sum[i] += deltas[i];
+    return sum;
+  }
+
+  static long value(long[] values, int meter, int field) {
+    final int i = meter * Stats.FIELDS + field;
+    return values != null && i < values.length ? values[i] : 0L;
+  }
+
+  /**
+   * The cumulative metering of a name laid out as in {@link Stats} along with that of its direct callers and callees.
+   */
+  static final class Row {
+
+    final NameImpl name;
+    final long[] values;
+    final long[] histogram;
+    final Link[] callers;
+    final Link[] callees;
+
+    Row(NameImpl name, long[] values, long[] histogram, Link[] callers, Link[] callees) {
+      this.name = name;
+      this.values = values;
+      this.histogram = histogram;
+      this.callers = callers;
+      this.callees = callees;
+    }
+
+  }
+
+  /**
+   * The cumulative metering of a callee when called directly by a caller, named after the other end of the link.
+   */
+  static final class Link {
+
+    final NameImpl name;
+    final long[] values;
+
+    Link(NameImpl name, long[] values) {
+      this.name = name;
+      this.values = values;
+    }
+
+  }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2014 JINSPIRED BV (http://www.autoletics.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.jinspired.probes.impl;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The rolling window aggregates of each name across all contexts, such as over the last 1, 5 and 15 minutes, complementing the
+ * cumulative metering of the {@link Table} so that a current change in behavior is not diluted by the history of the process.<p>
+ * Each name has a ring of fixed time buckets aligned to multiples of the bucket width, with a window summing the buckets it spans
+ * up to and including the current partially filled bucket. The ring is rotated lazily on write: the {@link Snapshotter}, the only writer,
+ * adds the deltas of a name to the bucket of the snapshot time, replacing the bucket of an earlier turn of the ring that held the slot.
+ * A read skips the buckets not within its window, so there is no background rotation and the windows of a name no longer changing
+ * simply empty. Buckets are immutable and replaced on each write so a read never sees torn values.<p>
+ * Windows are enabled with <tt>probes.windows</tt>, a comma separated list of window lengths in seconds,
+ * and <tt>probes.windows.bucket</tt> the bucket width in seconds (default <tt>10</tt>) which should be no shorter than the snapshot interval.
+ */
+final class Windows {
+
+  static final String WINDOWS = "probes.windows";
+  static final String BUCKET = "probes.windows.bucket";
+
+  /**
+   * The window lengths in seconds in the order configured.
+   */
+  final long[] lengths;
+
+  private final long width;
+  private final int[] spans;
+  private final int buckets;
+
+  private volatile Buckets[] rings = new Buckets[1024];
+
+  private Windows(long[] lengths, long width) {
+    this.lengths = lengths;
+    this.width = width;
+    this.spans = new int[lengths.length];
+
+    int buckets = 1;
+    for (int i = 0; i < lengths.length; i++) {
+      spans[i] = (int) ((lengths[i] * 1000L + width - 1) / width);
+      buckets = Math.max(buckets, spans[i]);
+    }
+    this.buckets = buckets;
+  }
+
+  static boolean enabled(EnvironmentImpl env, Names names) {
+    return env.getString(names.parse(WINDOWS)) != null;
+  }
+
+  /**
+   * Returns the windows configured in the environment, or <tt>null</tt> if not enabled.
+   */
+  static Windows create(EnvironmentImpl env, Names names) {
+    if (!enabled(env, names)) return null;
+
+    final long bucket = env.getLong(names.parse(BUCKET), 10L);
+    if (bucket <= 0L) throw new IllegalStateException(BUCKET + ": " + bucket);
+
+    final List<String> values = Extensions.list(env.getString(names.parse(WINDOWS)));
+    final long[] lengths = new long[values.size()];
+    for (int i = 0; i < lengths.length; i++) {
+      try {
+        lengths[i] = Long.parseLong(values.get(i));
+      } catch (NumberFormatException e) {
+        throw new IllegalStateException(WINDOWS + ": " + values.get(i), e);
+      }
+      if (lengths[i] < bucket) throw new IllegalStateException(WINDOWS + ": " + lengths[i] + " shorter than bucket: " + bucket);
+    }
+    if (lengths.length == 0) throw new IllegalStateException(WINDOWS + " empty");
+
+    return new Windows(lengths, bucket * 1000L);
+  }
+
+  /**
+   * Returns the index of the window with the length in seconds, or <tt>-1</tt> if not configured.
+   */
+  int index(long length) {
+    for (int i = 0; i < lengths.length; i++) {
+      if (lengths[i] == length) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Adds the value deltas of the name to the bucket of the time in milliseconds, called only by the snapshotter.
+   */
+  void add(int id, long time, long[] deltas) {
+    Buckets[] r = rings;
+    if (id >= r.length) {
+      final Buckets[] grown = new Buckets[Math.max(r.length << 1, id + 1)];
+      System.arraycopy(r, 0, grown, 0, r.length);
+      rings = r = grown;
+    }
+
+    Buckets ring = r[id];
+    if (ring == null) {
+      r[id] = ring = new Buckets(buckets);
+      rings = r;
+    }
+
+    final long epoch = time / width;
+    final int slot = (int) (epoch % buckets);
+    final Bucket bucket = ring.slots.get(slot);
+
+    final long[] values;
+    if (bucket != null && bucket.epoch == epoch) {
+      values = new long[Math.max(bucket.values.length, deltas.length)];
+      System.arraycopy(bucket.values, 0, values, 0, bucket.values.length);
+      for (int i = 0; i < deltas.length; i++) values[i] += deltas[i];
+    } else {
+      // the first write to the slot within this turn of the ring
+      values = deltas.clone();
+    }
+    ring.slots.set(slot, new Bucket(epoch, values));
+  }
+
+  /**
+   * Returns the values of the name, laid out as in {@link Stats}, summed over the window ending at the time in milliseconds,
+   * or <tt>null</tt> if the name has not changed within the window.
+   */
+  long[] values(int id, int window, long time) {
+    final Buckets[] r = rings;
+    final Buckets ring = id < r.length ? r[id] : null;
+    if (ring == null) return null;
+
+    final long epoch = time / width;
+    long[] values = null;
+    for (long e = epoch - spans[window] + 1; e <= epoch; e++) {
+      final Bucket bucket = ring.slots.get((int) (e % buckets));
+      if (bucket == null || bucket.epoch != e) continue;
+
+      if (values == null) values = new long[bucket.values.length];
+      else if (values.length < bucket.values.length) values = Stats.grow(values, bucket.values.length);
+      for (int i = 0; i < bucket.values.length; i++) values[i] += bucket.values[i];
+    }
+    return values;
+  }
+
+  /**
+   * The ring of time buckets of a name, a slot holding the bucket of the latest turn of the ring written to it.
+   */
+  private static final class Buckets {
+
+    final AtomicReferenceArray<Bucket> slots;
+
+    Buckets(int size) {
+      this.slots = new AtomicReferenceArray<Bucket>(size);
+    }
+
+  }
+
+  private static final class Bucket {
+
+    final long epoch;
+    final long[] values;
+
+    Bucket(long epoch, long[] values) {
+      this.epoch = epoch;
+      this.values = values;
+    }
+
+  }
+
+}
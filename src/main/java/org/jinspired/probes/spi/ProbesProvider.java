@@ -107,4 +107,15 @@ public interface ProbesProvider {
    */
   public Probes.Label label(String value);
 
+  /**
+   * Returns the process wide {@link Probes.Counter Counter} instance associated with the name creating it if not already present.
+   *
+   * @param name the name of the counter
+   * @return The process wide {@link Probes.Counter Counter} instance associated with the name.
+   * @throws NullPointerException if the name parameter is <tt>null</tt>
+   *
+   * @see Probes#counter(Probes.Name)
+   */
+  public Probes.Counter counter(Probes.Name name);
+
 }